@@ -1,11 +1,17 @@
 package application;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 
 
 /**
@@ -28,6 +34,11 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
     // for internal nodes of the tree
     private int branchingFactor;
 
+    // Most keys a node searches from its first key; a larger node is searched by bisection. A
+    // scan predicts its branches, so it beats the bisection up to about this size, see
+    // BPTreeBenchmark
+    static final int LINEAR_SEARCH_MAX = 128;
+
 
     /**
      * Public constructor
@@ -38,9 +49,98 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         if (branchingFactor <= 2) {
             throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
         }
-        // TODO : Complete
-        this.root = new LeafNode();
+        // the nodes size their arrays by the branching factor, so it is set first
         this.branchingFactor = branchingFactor;
+        this.root = new LeafNode();
+    }
+
+
+    /**
+     * Bulk-load constructor. Builds the tree bottom-up from entries that are already sorted by
+     * key: the leaves are packed left to right to the given fill factor and linked, then each
+     * level of internal nodes is built over the one below. This is a single linear pass instead
+     * of one top-down insert (and its splits) per entry.
+     * 
+     * @param branchingFactor
+     * @param sortedEntries key-value pairs in ascending key order, duplicates allowed
+     * @param fillFactor fraction of each node that is filled, in (0, 1]
+     */
+    public BPTree(int branchingFactor, Iterator<? extends Map.Entry<K, V>> sortedEntries,
+                    double fillFactor) {
+        this(branchingFactor);
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("Illegal fill factor: " + fillFactor);
+        }
+        List<K> keys = new ArrayList<K>();
+        List<V> values = new ArrayList<V>();
+        while (sortedEntries.hasNext()) {
+            Map.Entry<K, V> entry = sortedEntries.next();
+            if (!keys.isEmpty() && keys.get(keys.size() - 1).compareTo(entry.getKey()) > 0) {
+                throw new IllegalArgumentException("Entries are not sorted: " + entry.getKey()
+                                + " after " + keys.get(keys.size() - 1));
+            }
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        // a leaf overflows at branchingFactor keys, an internal node at branchingFactor children
+        int perLeaf = Math.max(1, Math.min(branchingFactor - 1,
+                        (int) Math.round(fillFactor * (branchingFactor - 1))));
+        int perNode = Math.max(3, Math.min(branchingFactor,
+                        (int) Math.round(fillFactor * branchingFactor)));
+
+        // spread the entries evenly so the last node is not left nearly empty
+        Node[] level = newNodeArray((keys.size() + perLeaf - 1) / perLeaf);
+        LeafNode previous = null;
+        for (int leaf = 0, from = 0; leaf < level.length; leaf++) {
+            int to = from + (keys.size() - from) / (level.length - leaf);
+            LeafNode node = new LeafNode();
+            for (int i = from; i < to; i++) {
+                node.keys[i - from] = keys.get(i);
+                node.values[i - from] = values.get(i);
+            }
+            node.size = to - from;
+            node.previous = previous;
+            if (previous != null) {
+                previous.next = node;
+            }
+            previous = node;
+            level[leaf] = node;
+            from = to;
+        }
+
+        while (level.length > 1) {
+            Node[] parents = newNodeArray((level.length + perNode - 1) / perNode);
+            for (int parent = 0, from = 0; parent < parents.length; parent++) {
+                int to = from + (level.length - from) / (parents.length - parent);
+                InternalNode node = new InternalNode();
+                System.arraycopy(level, from, node.children, 0, to - from);
+                for (int i = from + 1; i < to; i++) {
+                    node.keys[i - from - 1] = level[i].getFirstLeafKey();
+                }
+                node.size = to - from - 1;
+                parents[parent] = node;
+                from = to;
+            }
+            level = parents;
+        }
+        root = level[0];
+    }
+
+
+    /**
+     * Creates an array of nodes, which cannot be done directly for an inner class of a generic
+     * type
+     * 
+     * @param length
+     * @return array of nulls
+     */
+    @SuppressWarnings("unchecked")
+    private Node[] newNodeArray(int length) {
+        return (Node[]) new BPTree<?, ?>.Node[length];
     }
 
 
@@ -51,20 +151,48 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     @Override
     public void insert(K key, V value) {
-        // TODO : Complete
         root.insert(key, value);
-        // System.out.println(root.keys);
-        InternalNode result = (InternalNode) root.split();
+        InternalNode result = root.split();
 
         if (result != null) {
             // The old root was split into two parts.
             // We have to create a new root pointing to them
-            InternalNode _root = new InternalNode();
-            _root.keys = result.keys;
-            _root.children = result.children;
-            root = _root;
+            root = result;
         }
-        // System.out.println(root.keys);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see BPTreeADT#remove(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean remove(K key, V value) {
+        if (key == null || !root.remove(key, value)) {
+            return false;
+        }
+        if (!root.isLeafNode() && root.size == 0) {
+            // The last two children of the root were merged.
+            // Their parent is no longer needed
+            root = ((InternalNode) root).children[0];
+        }
+        return true;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see BPTreeADT#update(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean update(K oldKey, K newKey, V value) {
+        if (newKey == null || !remove(oldKey, value)) {
+            return false;
+        }
+        insert(newKey, value);
+        return true;
     }
 
 
@@ -75,14 +203,152 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     @Override
     public List<V> rangeSearch(K key, String comparator) {
-        if (!comparator.contentEquals(">=") && !comparator.contentEquals("==")
-                        && !comparator.contentEquals("<=")) {
+        if (key == null || comparator == null) {
             return new ArrayList<V>();
         }
-        else {
-            return root.rangeSearch(key, comparator);
+        if (comparator.contentEquals(">=")) {
+            return scan(key, null, true, true, Integer.MAX_VALUE);
+        } else if (comparator.contentEquals("==")) {
+            return scan(key, key, true, true, Integer.MAX_VALUE);
+        } else if (comparator.contentEquals("<=")) {
+            return scan(null, key, true, true, Integer.MAX_VALUE);
+        } else {
+            return new ArrayList<V>();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(K lowKey, K highKey, String inclusivity) {
+        return rangeSearch(lowKey, highKey, inclusivity, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Gets the values of the first keys between two bounds, see
+     * {@link #rangeSearch(Comparable, Comparable, String)}. The scan stops once limit values are
+     * found, so the cost is O(log N + limit) however many keys are in the range.
+     * 
+     * @param lowKey lower bound of the range, or null if it is open
+     * @param highKey upper bound of the range, or null if it is open
+     * @param inclusivity whether each bound is included
+     * @param limit most values to return
+     * @return at most limit values in ascending key order
+     */
+    public List<V> rangeSearch(K lowKey, K highKey, String inclusivity, int limit) {
+        if (inclusivity == null || inclusivity.length() != 2
+                        || "[(".indexOf(inclusivity.charAt(0)) < 0
+                        || "])".indexOf(inclusivity.charAt(1)) < 0 || limit <= 0) {
+            return new ArrayList<V>();
+        }
+        return scan(lowKey, highKey, inclusivity.charAt(0) == '[', inclusivity.charAt(1) == ']',
+                        limit);
+    }
+
+
+    /**
+     * Range scan engine shared by all searches. It descends once to the first leaf that can hold
+     * the low key, then walks the leaf chain forward and stops at the first key above the high
+     * key, so the cost is O(log N + size of the result).
+     * 
+     * @param lowKey lower bound, or null if the range is open below
+     * @param highKey upper bound, or null if the range is open above
+     * @param lowInclusive whether keys equal to lowKey qualify
+     * @param highInclusive whether keys equal to highKey qualify
+     * @param limit most values to return
+     * @return values in ascending key order
+     */
+    private List<V> scan(K lowKey, K highKey, boolean lowInclusive, boolean highInclusive,
+                    int limit) {
+        List<V> returnList = new ArrayList<V>();
+        LeafNode leaf = root.findLeaf(lowKey);
+        int i = lowKey == null ? 0 : leaf.lowerBound(lowKey);
+        while (leaf != null) {
+            for (; i < leaf.size; i++) {
+                K key = leaf.keys[i];
+                if (lowKey != null && !lowInclusive && key.compareTo(lowKey) == 0) {
+                    // equal keys may run over several leaves
+                    continue;
+                }
+                if (highKey != null) {
+                    int cmp = key.compareTo(highKey);
+                    if (cmp > 0 || (cmp == 0 && !highInclusive)) {
+                        return returnList;
+                    }
+                }
+                returnList.add(leaf.values[i]);
+                if (returnList.size() == limit) {
+                    return returnList;
+                }
+            }
+            leaf = leaf.next;
+            i = 0;
+        }
+        return returnList;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see BPTreeADT#ascending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> ascending(K fromKey, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<V>();
+        }
+        return scan(fromKey, null, true, true, limit);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see BPTreeADT#descending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> descending(K fromKey, int limit) {
+        List<V> returnList = new ArrayList<V>();
+        if (limit <= 0) {
+            return returnList;
+        }
+        // the last entry not above fromKey is in this leaf, or ends the one before it
+        LeafNode leaf = root.findLastLeaf(fromKey);
+        int i = (fromKey == null ? leaf.size : leaf.upperBound(fromKey)) - 1;
+        while (leaf != null) {
+            for (; i >= 0; i--) {
+                returnList.add(leaf.values[i]);
+                if (returnList.size() == limit) {
+                    return returnList;
+                }
+            }
+            leaf = leaf.previous;
+            i = leaf == null ? -1 : leaf.size - 1;
         }
+        return returnList;
+    }
+
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see BPTreeADT#spliterator(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public Spliterator<V> spliterator(K lowKey, K highKey, String inclusivity) {
+        if (inclusivity == null || inclusivity.length() != 2
+                        || "[(".indexOf(inclusivity.charAt(0)) < 0
+                        || "])".indexOf(inclusivity.charAt(1)) < 0) {
+            return Spliterators.emptySpliterator();
+        }
+        return new RangeSpliterator(lowKey, highKey, inclusivity.charAt(0) == '[',
+                        inclusivity.charAt(1) == ']', root);
     }
 
 
@@ -107,8 +373,11 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
                     sb.append(node.toString());
                     if (it.hasNext())
                         sb.append(", ");
-                    if (node instanceof BPTree.InternalNode)
-                        nextQueue.add(((InternalNode) node).children);
+                    if (node instanceof BPTree.InternalNode) {
+                        InternalNode internal = (InternalNode) node;
+                        nextQueue.add(Arrays.asList(internal.children)
+                                        .subList(0, internal.size + 1));
+                    }
                 }
                 sb.append('}');
                 if (!queue.isEmpty())
@@ -125,21 +394,27 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 
     /**
      * This abstract class represents any type of node in the tree This class is a super class of
-     * the LeafNode and InternalNode types.
+     * the LeafNode and InternalNode types. Keys are kept in a fixed-capacity array with room for
+     * one key over the limit, so a node can overflow before it is split and a split is a pair of
+     * System.arraycopy calls.
      * 
      * @author sapan
      */
     private abstract class Node {
 
-        // List of keys
-        List<K> keys;
+        // Keys, sorted in the first size slots
+        K[] keys;
+
+        // Number of keys in use
+        int size;
 
         /**
          * Package constructor
          */
+        @SuppressWarnings("unchecked")
         Node() {
-            // TODO : Complete
-            keys = new ArrayList<K>();
+            keys = (K[]) new Comparable<?>[branchingFactor];
+            size = 0;
         }
 
         /**
@@ -159,18 +434,137 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         abstract K getFirstLeafKey();
 
         /**
-         * Gets the new sibling created after splitting the node
+         * Splits the node if it overflows. The node keeps its upper half.
          * 
-         * @return Node
+         * @return InternalNode holding the separator key, the new sibling and this node, or null
          */
-        abstract Node split();
+        abstract InternalNode split();
 
-        /*
-         * (non-Javadoc)
+        /**
+         * Removes one entry with the given key and value from the subtree. A child that becomes
+         * too small is fixed by its parent, so only the root may be left underfull.
          * 
-         * @see BPTree#rangeSearch(java.lang.Object, java.lang.String)
+         * @param key
+         * @param value
+         * @return true if an entry was removed
+         */
+        abstract boolean remove(K key, V value);
+
+        /**
+         * Gets the fewest keys the node may hold unless it is the root. Two siblings that are
+         * both at or below it always fit in one node.
+         * 
+         * @return minimum size
          */
-        abstract List<V> rangeSearch(K key, String comparator);
+        abstract int minSize();
+
+        /**
+         * 
+         * @return boolean
+         */
+        boolean isUnderflow() {
+            return size < minSize();
+        }
+
+        /**
+         * Moves the last entry of the left sibling to the front of this node
+         * 
+         * @param left sibling on the left, of the same type
+         * @param separator parent key between the two
+         * @return new parent key between the two
+         */
+        abstract K borrowLast(Node left, K separator);
+
+        /**
+         * Moves the first entry of the right sibling to the end of this node
+         * 
+         * @param right sibling on the right, of the same type
+         * @param separator parent key between the two
+         * @return new parent key between the two
+         */
+        abstract K borrowFirst(Node right, K separator);
+
+        /**
+         * Appends all entries of the right sibling to this node, the parent then drops the
+         * separator and the right sibling
+         * 
+         * @param right sibling on the right, of the same type
+         * @param separator parent key between the two
+         */
+        abstract void merge(Node right, K separator);
+
+        /**
+         * Finds the first position whose key is greater than or equal to the given key, with a
+         * scan from the first key in a node of at most LINEAR_SEARCH_MAX keys and a binary search
+         * in a larger one
+         * 
+         * @param key
+         * @return position in [0, size]
+         */
+        int lowerBound(K key) {
+            if (size <= LINEAR_SEARCH_MAX) {
+                int position = 0;
+                while (position < size && keys[position].compareTo(key) < 0) {
+                    position++;
+                }
+                return position;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Finds the first position whose key is greater than the given key, searched like
+         * lowerBound
+         * 
+         * @param key
+         * @return position in [0, size]
+         */
+        int upperBound(K key) {
+            if (size <= LINEAR_SEARCH_MAX) {
+                int position = 0;
+                while (position < size && keys[position].compareTo(key) <= 0) {
+                    position++;
+                }
+                return position;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(key) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Gets the leftmost leaf that can hold keys greater than or equal to the given key
+         * 
+         * @param key the key to descend to, or null for the first leaf of the tree
+         * @return LeafNode
+         */
+        abstract LeafNode findLeaf(K key);
+
+        /**
+         * Gets the rightmost leaf that can hold keys less than or equal to the given key
+         * 
+         * @param key the key to descend to, or null for the last leaf of the tree
+         * @return LeafNode
+         */
+        abstract LeafNode findLastLeaf(K key);
 
         /**
          * 
@@ -180,8 +574,21 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 
         abstract boolean isLeafNode();
 
+        /**
+         * Gets the position the node splits at
+         * 
+         * @return mid
+         */
+        int splitPosition() {
+            if (branchingFactor % 2 == 0) {
+                return branchingFactor / 2 + 1;
+            } else {
+                return (branchingFactor + 1) / 2;
+            }
+        }
+
         public String toString() {
-            return keys.toString();
+            return Arrays.toString(Arrays.copyOf(keys, size));
         }
 
     } // End of abstract class Node
@@ -195,16 +602,15 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     private class InternalNode extends Node {
 
-        // List of children nodes
-        List<Node> children;
+        // Children nodes, the first size + 1 slots are in use
+        Node[] children;
 
         /**
          * Package constructor
          */
         InternalNode() {
             super();
-            // TODO : Complete
-            children = new ArrayList<Node>();
+            children = newNodeArray(branchingFactor + 1);
         }
 
         /**
@@ -213,8 +619,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * @see BPTree.Node#getFirstLeafKey()
          */
         K getFirstLeafKey() {
-            // TODO : Complete
-            return children.get(0).getFirstLeafKey();
+            return children[0].getFirstLeafKey();
         }
 
         /**
@@ -223,8 +628,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * @see BPTree.Node#isOverflow()
          */
         boolean isOverflow() {
-            // TODO : Complete
-            return (keys.size() >= branchingFactor);
+            return (size >= branchingFactor);
         }
 
         /**
@@ -233,114 +637,20 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * @see BPTree.Node#insert(java.lang.Comparable, java.lang.Object)
          */
         void insert(K key, V value) {
-            // TODO : Complete
-
-            if (children != null) {
-                // System.out.println(children.size() + " size");
-                // System.out.println(children.get(0).getFirstLeafKey());
-                // System.out.println(children.get(1).getFirstLeafKey());
-                
-                int position = keys.size();
-                for (int k = 0; k < keys.size(); k++) {
-                        if (key.compareTo(keys.get(k)) <= 0) {
-                            position = k;
-                            break;
-                    }
-                }
-//                System.out.println(position);
-//                System.out.println(children.size());
-//                System.out.println(children.get(position));
-                children.get(position).insert(key, value);
-                InternalNode newNode = (InternalNode) children.get(position).split();
-              if (newNode != null) {
-                  children.remove(position);
-                  children.addAll(position, newNode.children);
-
-                  int childPosition = keys.size();
-                  for (int j = 0; j < keys.size(); j++) {
-                      if (keys.get(j).compareTo(newNode.keys.get(0)) >= 0) {
-                          childPosition = j;
-                      }
-                  }
-                  if (keys.size() == childPosition) {
-                      keys.add(newNode.keys.get(0));
-                  }else {
-                  keys.add(childPosition, newNode.keys.get(0));
-              }
-                
-              }
-
-//                if (key.compareTo(children.get(children.size() - 1).getFirstLeafKey()) > 0) {
-//                    children.get(children.size() - 1).insert(key, value);
-//                    InternalNode newNode = (InternalNode) children.get(children.size() - 1).split();
-//                    if (newNode != null) {
-//                        children.remove(children.size() - 1);
-//                        System.out.println(children + " children");
-//                        children.addAll(newNode.children);
-//                        System.out.println(children + " children");
-//                        int position1 = keys.size();
-//
-//                        keys.add(position1, newNode.keys.get(0));
-//                        System.out.println(keys + " key");
-//
-//
-//                    }
-//                } else {
-//                    for (int i = 0; i < children.size(); i++) {
-//
-//
-//                        // System.out.println(children.size() + " size");
-//                        if (key.compareTo(children.get(i).getFirstLeafKey()) <= 0) {
-//                            if (i == 0) {
-//                                children.get(i).insert(key, value);
-//                                InternalNode newNode = (InternalNode) children.get(i).split();
-//
-//                                if (newNode != null) {
-//                                    children.remove(i);
-//                                    children.addAll(i, newNode.children);
-//
-//
-//                                    int position = keys.size();
-//                                    for (int j = 0; j < keys.size(); j++) {
-//                                        if (keys.get(j).compareTo(newNode.keys.get(0)) > 0) {
-//                                            position = j;
-//                                            break;
-//                                        }
-//                                    }
-//                                    keys.add(position, newNode.keys.get(0));
-//                                    break;
-//                                } else {
-//                                    break;
-//                                }
-//                            } else {
-//
-//                                children.get(i - 1).insert(key, value);
-//                                InternalNode newNode = (InternalNode) children.get(i - 1).split();
-//                                if (newNode != null) {
-//                                    children.remove(i - 1);
-//                                    children.addAll(i - 1, newNode.children);
-//
-//                                    int position = keys.size();
-//                                    for (int j = 0; j < keys.size(); j++) {
-//                                        if (keys.get(j).compareTo(newNode.keys.get(0)) > 0) {
-//                                            position = j;
-//                                        }
-//                                    }
-//
-//                                    keys.add(position, newNode.keys.get(0));
-//                                    break;
-//                                } else {
-//                                    break;
-//                                }
-//
-//                            }
-//
-//                        }
-//                    }
-//                }
+            // the last child that can hold the key, so a duplicate goes after the equal keys
+            int position = upperBound(key);
+            Node child = children[position];
+            child.insert(key, value);
+            InternalNode newNode = child.split();
+            if (newNode != null) {
+                // the child kept its upper half, the new sibling takes its place on the left
+                System.arraycopy(children, position + 1, children, position + 2, size - position);
+                children[position] = newNode.children[0];
+                children[position + 1] = newNode.children[1];
+                System.arraycopy(keys, position, keys, position + 1, size - position);
+                keys[position] = newNode.keys[0];
+                size++;
             }
-
-
         }
 
         boolean isLeafNode() {
@@ -350,62 +660,172 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         /**
          * (non-Javadoc)
          * 
-         * @see BPTree.Node#split()
+         * @see BPTree.Node#remove(java.lang.Comparable, java.lang.Object)
          */
-        Node split() {
-            if (isOverflow()) {
-                int mid = 0;
-                if (branchingFactor%2 == 0) {
-                    mid = branchingFactor / 2 + 1;
-                }else {
-                    mid = (branchingFactor + 1) / 2;
+        boolean remove(K key, V value) {
+            // child i holds keys between key i - 1 and key i, both included, so equal keys may
+            // run over every child from the first one that can hold the key
+            for (int position = lowerBound(key); position <= size; position++) {
+                if (children[position].remove(key, value)) {
+                    rebalance(position);
+                    return true;
                 }
+                if (position == size || keys[position].compareTo(key) != 0) {
+                    return false;
+                }
+            }
+            return false;
+        }
 
-                InternalNode newNode = new InternalNode();
-                InternalNode sibling = new InternalNode();
+        /**
+         * Fixes a child that became too small, by borrowing an entry from a sibling that can
+         * spare one or else by merging it with a sibling
+         * 
+         * @param position position of the child
+         */
+        void rebalance(int position) {
+            Node child = children[position];
+            if (!child.isUnderflow()) {
+                return;
+            }
+            if (position > 0 && children[position - 1].size > children[position - 1].minSize()) {
+                keys[position - 1] = child.borrowLast(children[position - 1], keys[position - 1]);
+            } else if (position < size
+                            && children[position + 1].size > children[position + 1].minSize()) {
+                keys[position] = child.borrowFirst(children[position + 1], keys[position]);
+            } else if (position > 0) {
+                children[position - 1].merge(child, keys[position - 1]);
+                removeChild(position - 1);
+            } else {
+                child.merge(children[position + 1], keys[position]);
+                removeChild(position);
+            }
+        }
 
-                // System.out.println(mid-1);
-                newNode.keys.add(keys.get(mid - 1));
-                sibling.keys.addAll(keys.subList(0, mid - 1));
+        /**
+         * Drops a key and the child on its right after that child was merged into its left
+         * sibling
+         * 
+         * @param position position of the key
+         */
+        void removeChild(int position) {
+            System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+            System.arraycopy(children, position + 2, children, position + 1, size - position - 1);
+            keys[size - 1] = null;
+            children[size] = null;
+            size--;
+        }
 
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#minSize()
+         */
+        int minSize() {
+            // at least half of the children
+            return (branchingFactor + 1) / 2 - 1;
+        }
 
-                sibling.children.addAll(children.subList(0, mid));
-                
-                for (int i = 0; i < mid; i++) {
-                    this.keys.remove(0);
-                    this.children.remove(0);
-                }
-//                this.keys.removeAll(keys.subList(0, mid)); // BPTree
-//                this.children.removeAll(children.subList(0, mid));
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#borrowLast(BPTree.Node, java.lang.Comparable)
+         */
+        K borrowLast(Node left, K separator) {
+            InternalNode sibling = (InternalNode) left;
+            System.arraycopy(keys, 0, keys, 1, size);
+            System.arraycopy(children, 0, children, 1, size + 1);
+            keys[0] = separator;
+            children[0] = sibling.children[sibling.size];
+            size++;
+
+            K newSeparator = sibling.keys[sibling.size - 1];
+            sibling.keys[sibling.size - 1] = null;
+            sibling.children[sibling.size] = null;
+            sibling.size--;
+            return newSeparator;
+        }
 
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#borrowFirst(BPTree.Node, java.lang.Comparable)
+         */
+        K borrowFirst(Node right, K separator) {
+            InternalNode sibling = (InternalNode) right;
+            keys[size] = separator;
+            children[size + 1] = sibling.children[0];
+            size++;
+
+            K newSeparator = sibling.keys[0];
+            System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.size - 1);
+            System.arraycopy(sibling.children, 1, sibling.children, 0, sibling.size);
+            sibling.keys[sibling.size - 1] = null;
+            sibling.children[sibling.size] = null;
+            sibling.size--;
+            return newSeparator;
+        }
 
-                newNode.children.add(sibling);
-                newNode.children.add(this);
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#merge(BPTree.Node, java.lang.Comparable)
+         */
+        void merge(Node right, K separator) {
+            InternalNode sibling = (InternalNode) right;
+            keys[size] = separator;
+            System.arraycopy(sibling.keys, 0, keys, size + 1, sibling.size);
+            System.arraycopy(sibling.children, 0, children, size + 1, sibling.size + 1);
+            size += sibling.size + 1;
+        }
 
-                return newNode;
-            } else {
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#split()
+         */
+        InternalNode split() {
+            if (!isOverflow()) {
                 return null;
             }
+            int mid = splitPosition();
+            InternalNode newNode = new InternalNode();
+            InternalNode sibling = new InternalNode();
+
+            newNode.keys[0] = keys[mid - 1];
+            newNode.size = 1;
+            System.arraycopy(keys, 0, sibling.keys, 0, mid - 1);
+            System.arraycopy(children, 0, sibling.children, 0, mid);
+            sibling.size = mid - 1;
+
+            // this node keeps the keys after the separator
+            System.arraycopy(keys, mid, keys, 0, size - mid);
+            System.arraycopy(children, mid, children, 0, size + 1 - mid);
+            Arrays.fill(keys, size - mid, size, null);
+            Arrays.fill(children, size + 1 - mid, size + 1, null);
+            size -= mid;
+
+            newNode.children[0] = sibling;
+            newNode.children[1] = this;
+            return newNode;
         }
 
         /**
          * (non-Javadoc)
          * 
-         * @see BPTree.Node#rangeSearch(java.lang.Comparable, java.lang.String)
+         * @see BPTree.Node#findLeaf(java.lang.Comparable)
          */
-        List<V> rangeSearch(K key, String comparator) {
-            
-            int position = keys.size();
-            
-            for (int k = 0; k < keys.size(); k++) {
-                    if (key.compareTo(keys.get(k)) <= 0) {
-                        position = k;
-                        break;
-                }
-                    
-            }
-            
-            return children.get(position).rangeSearch(key, comparator);
+        LeafNode findLeaf(K key) {
+            return children[key == null ? 0 : lowerBound(key)].findLeaf(key);
+        }
+
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#findLastLeaf(java.lang.Comparable)
+         */
+        LeafNode findLastLeaf(K key) {
+            return children[key == null ? size : upperBound(key)].findLastLeaf(key);
         }
 
     } // End of class InternalNode
@@ -420,8 +840,8 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     private class LeafNode extends Node {
 
-        // List of values
-        List<V> values;
+        // Values, the value of key i is kept in slot i
+        V[] values;
 
         // Reference to the next leaf node
         LeafNode next;
@@ -432,10 +852,10 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         /**
          * Package constructor
          */
+        @SuppressWarnings("unchecked")
         LeafNode() {
             super();
-            // TODO : Complete
-            values = new ArrayList<V>();
+            values = (V[]) new Object[branchingFactor];
             next = null;
             previous = null;
         }
@@ -447,8 +867,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * @see BPTree.Node#getFirstLeafKey()
          */
         K getFirstLeafKey() {
-            // TODO : Complete
-            return keys.get(0);
+            return keys[0];
         }
 
         /**
@@ -457,8 +876,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * @see BPTree.Node#isOverflow()
          */
         boolean isOverflow() {
-            // TODO : Complete
-            return (keys.size() >= branchingFactor);
+            return (size >= branchingFactor);
         }
 
         boolean isLeafNode() {
@@ -468,43 +886,100 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         /**
          * (non-Javadoc)
          * 
-         * @see BPTree.Node#insert(Comparable, Object)
+         * @see BPTree.Node#remove(Comparable, Object)
          */
-        void insert(K key, V value) {
-            // TODO : Complete
-            int position = keys.size();
-            for (int i = 0; i < keys.size(); i++) {
-                if (keys.get(i).compareTo(key) > 0) {
-                    position = i;
-                    break;
-                }else if (keys.get(i).compareTo(key) == 0){
-                    position = i;
-                    break;
+        boolean remove(K key, V value) {
+            for (int position = lowerBound(key); position < size
+                            && keys[position].compareTo(key) == 0; position++) {
+                if (Objects.equals(values[position], value)) {
+                    System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+                    System.arraycopy(values, position + 1, values, position, size - position - 1);
+                    size--;
+                    keys[size] = null;
+                    values[size] = null;
+                    return true;
                 }
             }
-            if (keys.size() == position) {
-                keys.add(key);
-                values.add(value);
-            }else {
-            keys.add(position, key);
-            values.add(position, value);
-            }
+            return false;
+        }
 
-//          int position = keys.size();
-//          for (int i = keys.size()-1; i >= 0; i--) {
-//              if (keys.get(i).compareTo(key) <= 0) {
-//                  position = i+1;
-//                  break;
-//              }
-//          }
-//          if (keys.size() == position) {
-//              keys.add(key);
-//              values.add(value);
-//          }else {
-//              keys.add(position, key);
-//              values.add(position, value);
-//          }
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#minSize()
+         */
+        int minSize() {
+            // at least half of the branchingFactor - 1 keys a leaf holds
+            return branchingFactor / 2;
+        }
 
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#borrowLast(BPTree.Node, Comparable)
+         */
+        K borrowLast(Node left, K separator) {
+            LeafNode sibling = (LeafNode) left;
+            System.arraycopy(keys, 0, keys, 1, size);
+            System.arraycopy(values, 0, values, 1, size);
+            sibling.size--;
+            keys[0] = sibling.keys[sibling.size];
+            values[0] = sibling.values[sibling.size];
+            sibling.keys[sibling.size] = null;
+            sibling.values[sibling.size] = null;
+            size++;
+            return keys[0];
+        }
+
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#borrowFirst(BPTree.Node, Comparable)
+         */
+        K borrowFirst(Node right, K separator) {
+            LeafNode sibling = (LeafNode) right;
+            keys[size] = sibling.keys[0];
+            values[size] = sibling.values[0];
+            size++;
+            sibling.size--;
+            System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.size);
+            System.arraycopy(sibling.values, 1, sibling.values, 0, sibling.size);
+            sibling.keys[sibling.size] = null;
+            sibling.values[sibling.size] = null;
+            return sibling.keys[0];
+        }
+
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#merge(BPTree.Node, Comparable)
+         */
+        void merge(Node right, K separator) {
+            LeafNode sibling = (LeafNode) right;
+            System.arraycopy(sibling.keys, 0, keys, size, sibling.size);
+            System.arraycopy(sibling.values, 0, values, size, sibling.size);
+            size += sibling.size;
+            // the merged leaf keeps its forward link, so a scan that already stands on it
+            // still reaches the rest of the chain
+            next = sibling.next;
+            if (next != null) {
+                next.previous = this;
+            }
+        }
+
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#insert(Comparable, Object)
+         */
+        void insert(K key, V value) {
+            // duplicates go after the existing equal keys, in the order they were inserted
+            int position = upperBound(key);
+            System.arraycopy(keys, position, keys, position + 1, size - position);
+            System.arraycopy(values, position, values, position + 1, size - position);
+            keys[position] = key;
+            values[position] = value;
+            size++;
         }
 
         /**
@@ -512,164 +987,223 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * 
          * @see BPTree.Node#split()
          */
-        Node split() {
-            // TODO : Complete
-            if (isOverflow()) {
-                int mid = 0;
-                if (branchingFactor%2 == 0) {
-                    mid = branchingFactor / 2 + 1;
-                }else {
-                    mid = (branchingFactor + 1) / 2;
-                }
+        InternalNode split() {
+            if (!isOverflow()) {
+                return null;
+            }
+            int mid = splitPosition();
+            InternalNode newNode = new InternalNode();
+            LeafNode sibling = new LeafNode();
+
+            // the first key this node keeps becomes the separator
+            newNode.keys[0] = keys[mid - 1];
+            newNode.size = 1;
+            System.arraycopy(keys, 0, sibling.keys, 0, mid - 1);
+            System.arraycopy(values, 0, sibling.values, 0, mid - 1);
+            sibling.size = mid - 1;
+
+            System.arraycopy(keys, mid - 1, keys, 0, size - mid + 1);
+            System.arraycopy(values, mid - 1, values, 0, size - mid + 1);
+            Arrays.fill(keys, size - mid + 1, size, null);
+            Arrays.fill(values, size - mid + 1, size, null);
+            size -= mid - 1;
+
+            newNode.children[0] = sibling;
+            newNode.children[1] = this;
+            sibling.previous = this.previous;
+            if (this.previous != null) {
+                this.previous.next = sibling;
+            }
+            this.previous = sibling;
+            sibling.next = this;
+            return newNode;
+        }
 
-                InternalNode newNode = new InternalNode();
-                LeafNode sibling = new LeafNode();
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#findLeaf(Comparable)
+         */
+        LeafNode findLeaf(K key) {
+            return this;
+        }
 
-                // System.out.println(mid-1);
-                newNode.keys.add(keys.get(mid - 1));
-                // System.out.println(newNode.keys);
+        /**
+         * (non-Javadoc)
+         * 
+         * @see BPTree.Node#findLastLeaf(Comparable)
+         */
+        LeafNode findLastLeaf(K key) {
+            return this;
+        }
 
-                sibling.keys.addAll(keys.subList(0, mid - 1));
-                for (int i = 0; i < mid-1; i++) {
-                    this.keys.remove(0);
-                }
-//                this.keys.removeAll(keys.subList(0, mid - 1)); // BPTree
+    } // End of class LeafNode
 
-                sibling.values.addAll(values.subList(0, mid - 1));
-                
-                for (int i = 0; i < mid-1; i++) {
-                    this.values.remove(0);
-                }
-//                this.values.removeAll(sibling.values);
 
-                newNode.children.add(sibling);
-                newNode.children.add(this);
-                sibling.previous = this.previous;
-                if (this.previous != null) {
-                    this.previous.next = sibling;
-                }
-                this.previous = sibling;
-                sibling.next = this;
+    /**
+     * Lazy range scan by subtree. The spliterator keeps the leaf it is reading and, in key order,
+     * the roots of the subtrees that come after it; only the children whose separators overlap
+     * the range are ever entered. Advancing past the leaf descends into the next pending subtree,
+     * and splitting hands the leaf and the first half of the pending subtrees to a new
+     * spliterator, expanding a lone subtree into its children first.
+     */
+    private class RangeSpliterator implements Spliterator<V> {
 
-                
-                // System.out.println(newNode.keys);
-                // System.out.println(newNode.children.size());
-                return newNode;
-            } else {
-                return null;
-            }
+        // Bounds of the range, null if that side is open
+        final K lowKey;
+        final K highKey;
+
+        // Whether keys equal to each bound qualify
+        final boolean lowInclusive;
+        final boolean highInclusive;
+
+        // Subtrees after the current leaf, in key order
+        final ArrayDeque<Node> pending = new ArrayDeque<Node>();
+
+        // Leaf being read and the position of its next entry, null before the first one
+        LeafNode leaf;
+        int i;
+
+        // Set once a key above the range was seen
+        boolean done;
+
+        // Values left, a guess halved on every split
+        long estimate = Long.MAX_VALUE;
+
+        /**
+         * Package constructor, the range starts with no subtree
+         */
+        RangeSpliterator(K lowKey, K highKey, boolean lowInclusive, boolean highInclusive) {
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.lowInclusive = lowInclusive;
+            this.highInclusive = highInclusive;
         }
 
         /**
+         * Package constructor, the range covers the whole tree
+         */
+        RangeSpliterator(K lowKey, K highKey, boolean lowInclusive,
+                        boolean highInclusive, Node root) {
+            this(lowKey, highKey, lowInclusive, highInclusive);
+            pending.add(root);
+        }
+
+        /**
+         * Gets the first child of a node that can hold keys in the range
+         */
+        int firstChild(InternalNode node) {
+            return lowKey == null ? 0 : node.lowerBound(lowKey);
+        }
+
+        /**
+         * Gets the last child of a node that can hold keys in the range
+         */
+        int lastChild(InternalNode node) {
+            return highKey == null ? node.size : node.upperBound(highKey);
+        }
+
+        /*
          * (non-Javadoc)
          * 
-         * @see BPTree.Node#rangeSearch(Comparable, String)
-         */
-        List<V> rangeSearch(K key, String comparator) {
-            
-            ArrayList<V> returnList = new ArrayList<V>();
-            
-            if (comparator.contentEquals(">=")) {
-             // System.out.println(keys + "keys");
-                for (int i = 0; i < keys.size(); i++) {
-                    if (keys.get(i).compareTo(key) >= 0) {
-                        returnList.add(values.get(i));
-//                        System.out.println(returnList);
-                    }
-                }  
-                
-                
-                LeafNode current = this;
-                LeafNode checkPrevious = this;
-                while (current.next != null) {
-                    for (int j = 0; j < current.next.keys.size(); j++) {
-                        if (current.next.keys.get(j).compareTo(key) >= 0) {
-                            returnList.add(current.next.values.get(j));
+         * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            while (!done) {
+                if (leaf != null && i < leaf.size) {
+                    K key = leaf.keys[i];
+                    V value = leaf.values[i++];
+                    if (lowKey != null) {
+                        int cmp = key.compareTo(lowKey);
+                        if (cmp < 0 || (cmp == 0 && !lowInclusive)) {
+                            continue;
                         }
                     }
-
- //                   System.out.println(current.next.keys + "next");
-//                    System.out.println(returnList);
-                    current = current.next;
-                }
-                
-                while (checkPrevious.previous != null) {
-                    for (int j = checkPrevious.previous.keys.size() - 1; j >= 0; j--) {
-                        if (checkPrevious.previous.keys.get(j).compareTo(key) >= 0) {
-                            returnList.add(0, checkPrevious.previous.values.get(j));
+                    if (highKey != null) {
+                        int cmp = key.compareTo(highKey);
+                        if (cmp > 0 || (cmp == 0 && !highInclusive)) {
+                            done = true;
+                            return false;
                         }
                     }
-                    checkPrevious = checkPrevious.previous;
-                }
-                
-                
-            }else if (comparator.contentEquals("==")) {
-             
-                if (keys.contains(key)) {
-                    for (int i = 0; i < keys.size(); i++) {
-                        if (keys.get(i).equals(key)) {
-                            returnList.add(values.get(i));
-                        }
-                    }              
+                    action.accept(value);
+                    return true;
                 }
-                
-                LeafNode current = this;
-                LeafNode checkPrevious = this;
-                while (current.next != null) {
-                    for (int j = 0; j < current.next.keys.size(); j++) {
-                        if (current.next.keys.get(j).compareTo(key) == 0) {
-                            returnList.add(current.next.values.get(j));
-                        }
-                    }
-
- //                   System.out.println(current.next.keys + "next");
-//                    System.out.println(returnList);
-                    current = current.next;
+                Node node = pending.pollFirst();
+                if (node == null) {
+                    done = true;
+                    return false;
                 }
-                
-                while (checkPrevious.previous != null) {
-                    for (int j = checkPrevious.previous.keys.size() - 1; j >= 0; j--) {
-                        if (checkPrevious.previous.keys.get(j).compareTo(key) == 0) {
-                            returnList.add(0, checkPrevious.previous.values.get(j));
-                        }
+                // go down the leftmost path, the siblings on the right wait their turn
+                while (!node.isLeafNode()) {
+                    InternalNode internal = (InternalNode) node;
+                    int first = firstChild(internal);
+                    for (int child = lastChild(internal); child > first; child--) {
+                        pending.addFirst(internal.children[child]);
                     }
-                    checkPrevious = checkPrevious.previous;
+                    node = internal.children[first];
                 }
-                
-                
-            }else if (comparator.contentEquals("<=")){
-                
-                for (int i = 0; i < keys.size(); i++) {
-                    if (keys.get(i).compareTo(key) <= 0) {
-                        returnList.add(values.get(i));
-                    }
-                }  
-                
-                LeafNode current = this;
-                LeafNode checkPrevious = this;
-                while (current.next != null) {
-                    for (int j = 0; j < current.next.keys.size(); j++) {
-                        if (current.next.keys.get(j).compareTo(key) <= 0) {
-                            returnList.add(current.next.values.get(j));
-                        }
-                    }
-                    current = current.next;
-                }
-                
-                while (checkPrevious.previous != null) {
-                    for (int j = checkPrevious.previous.keys.size() - 1; j >= 0; j--) {
-                        if (checkPrevious.previous.keys.get(j).compareTo(key) <= 0) {
-                            returnList.add(0, checkPrevious.previous.values.get(j));
-                        }
-                    }
-                    checkPrevious = checkPrevious.previous;
+                leaf = (LeafNode) node;
+                i = lowKey == null ? 0 : leaf.lowerBound(lowKey);
+            }
+            return false;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Spliterator#trySplit()
+         */
+        @Override
+        public Spliterator<V> trySplit() {
+            if (done) {
+                return null;
+            }
+            while (pending.size() == 1 && !pending.peekFirst().isLeafNode()) {
+                InternalNode internal = (InternalNode) pending.pollFirst();
+                for (int child = firstChild(internal); child <= lastChild(internal); child++) {
+                    pending.addLast(internal.children[child]);
                 }
             }
-            // TODO : Complete
-            return returnList;
+            int half = pending.size() / 2;
+            if (half == 0) {
+                return null;
+            }
+            RangeSpliterator prefix =
+                            new RangeSpliterator(lowKey, highKey, lowInclusive, highInclusive);
+            prefix.leaf = leaf;
+            prefix.i = i;
+            for (int n = 0; n < half; n++) {
+                prefix.pending.addLast(pending.pollFirst());
+            }
+            leaf = null;
+            estimate >>>= 1;
+            prefix.estimate = estimate;
+            return prefix;
         }
 
-    } // End of class LeafNode
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Spliterator#estimateSize()
+         */
+        @Override
+        public long estimateSize() {
+            return done ? 0 : estimate;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Spliterator#characteristics()
+         */
+        @Override
+        public int characteristics() {
+            return ORDERED;
+        }
+
+    } // End of class RangeSpliterator
 
 
     /**
@@ -694,6 +1228,11 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         }
         List<Double> filteredValues = bpTree.rangeSearch(0.2d, ">=");
         System.out.println("Filtered values: " + filteredValues.toString());
+        filteredValues = bpTree.rangeSearch(0.2d, 0.8d, "[)");
+        System.out.println("Filtered values in [0.2, 0.8): " + filteredValues.toString());
+        while (bpTree.remove(0.5d, 0.5d)) {
+            System.out.println("\n\nTree structure after removing 0.5:\n" + bpTree.toString());
+        }
         
 //        BPTree<Integer, Integer> bpTree = new BPTree<>(4);
 //        List<Integer> list = new ArrayList<>();
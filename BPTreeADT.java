@@ -1,5 +1,10 @@
 package application;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A generic B+ Tree interface (DO NOT edit this file)
@@ -43,6 +48,151 @@ public interface BPTreeADT<K, V> {
     public List<V> rangeSearch(K key, String comparator);
     
     
+    /**
+     * Gets the values whose keys lie between two bounds
+     * with a single scan of the tree.
+     * 
+     * Value of inclusivity is written in interval notation,
+     * one of these: "[]", "[)", "(]", "()"
+     * 
+     * Example:
+     *     If given lowKey = 50, highKey = 200 and inclusivity = "[]":
+     *         return all the values with the corresponding
+     *      keys >= 50 and keys <= 200
+     * 
+     * If a bound is null, that side of the range is open.
+     * If inclusivity is null, empty, or not according
+     * to required form, return empty list.
+     * 
+     * @param lowKey lower bound of the range
+     * @param highKey upper bound of the range
+     * @param inclusivity whether each bound is included
+     * @return list of values in ascending key order;
+     * if nothing found, return empty list
+     */
+    public List<V> rangeSearch(K lowKey, K highKey, String inclusivity);
+    
+    
+    /**
+     * Gets the values of the first entries in ascending key order,
+     * walking the leaves forward from a key.
+     * 
+     * Example:
+     *     ascending(null, 20) returns the values of the 20
+     *     smallest keys
+     * 
+     * If limit is zero or less, return empty list.
+     * 
+     * @param fromKey smallest key to visit, or null to start
+     * from the smallest key of the tree
+     * @param limit most values to return
+     * @return list of values in ascending key order;
+     * if nothing found, return empty list
+     */
+    public List<V> ascending(K fromKey, int limit);
+    
+    
+    /**
+     * Gets the values of the first entries in descending key order,
+     * walking the leaves backward from a key.
+     * 
+     * Example:
+     *     descending(null, 20) returns the values of the 20
+     *     largest keys
+     * 
+     * If limit is zero or less, return empty list.
+     * 
+     * @param fromKey largest key to visit, or null to start
+     * from the largest key of the tree
+     * @param limit most values to return
+     * @return list of values in descending key order;
+     * if nothing found, return empty list
+     */
+    public List<V> descending(K fromKey, int limit);
+    
+    
+    /**
+     * Gets the values whose keys lie between two bounds lazily,
+     * with the same arguments as rangeSearch(K, K, String).
+     * Nothing is read until the spliterator is advanced, so a
+     * caller that stops early never visits the rest of the range,
+     * and a parallel stream can split it by subtree.
+     * 
+     * Note: the tree must not be changed while the spliterator
+     * is in use.
+     * 
+     * @param lowKey lower bound of the range
+     * @param highKey upper bound of the range
+     * @param inclusivity whether each bound is included
+     * @return spliterator over the values in ascending key order;
+     * if inclusivity is not valid, an empty spliterator
+     */
+    public Spliterator<V> spliterator(K lowKey, K highKey, String inclusivity);
+    
+    
+    /**
+     * Gets the values whose keys lie between two bounds lazily,
+     * see spliterator(K, K, String).
+     * 
+     * @param lowKey lower bound of the range
+     * @param highKey upper bound of the range
+     * @param inclusivity whether each bound is included
+     * @return iterator over the values in ascending key order
+     */
+    public default Iterator<V> iterator(K lowKey, K highKey, String inclusivity) {
+        return Spliterators.iterator(spliterator(lowKey, highKey, inclusivity));
+    }
+    
+    
+    /**
+     * Gets a sequential stream of the values whose keys lie between
+     * two bounds, see spliterator(K, K, String). Call parallel() on
+     * it to split the range by subtree.
+     * 
+     * Example:
+     *     stream(50.0, 200.0, "[]").count() counts the values
+     *     without building a list
+     * 
+     * @param lowKey lower bound of the range
+     * @param highKey upper bound of the range
+     * @param inclusivity whether each bound is included
+     * @return stream of the values in ascending key order
+     */
+    public default Stream<V> stream(K lowKey, K highKey, String inclusivity) {
+        return StreamSupport.stream(spliterator(lowKey, highKey, inclusivity), false);
+    }
+    
+    
+    /**
+     * Removes one entry with the given key and value from the tree,
+     * merging or redistributing nodes that become too small.
+     * 
+     * Note: if several entries have the same key and value,
+     * only one of them is removed. Values are compared with equals.
+     * 
+     * @param key key of the entry
+     * @param value value of the entry
+     * @return true if an entry was removed, false if none matched
+     */
+    public boolean remove(K key, V value);
+    
+    
+    /**
+     * Moves an entry to a new key, for a value whose key changed.
+     * 
+     * Example:
+     *     If a food item's calories change from 100 to 120:
+     *         update(100, 120, item) on the calories tree
+     * 
+     * @param oldKey current key of the entry
+     * @param newKey key the entry is moved to
+     * @param value value of the entry
+     * @return true if the entry was found and moved, false if
+     * no entry matched the old key and value
+     */
+    public boolean update(K oldKey, K newKey, V value);
+    
+    
     /**
      * Returns a string representation for the tree
      * This method is provided to students in the implementation.
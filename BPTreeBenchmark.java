@@ -0,0 +1,442 @@
+package application;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro benchmark for BPTree across branching factors, including the linear and the binary search
+ * inside a node, over boxed keys as in BPTree and over the double[] keys of DoubleBPTree. It is a plain main program rather than a JMH harness so it runs without any
+ * extra dependency: every measurement is repeated after a warm up round and the best round is
+ * reported.
+ *
+ * Usage: java application.BPTreeBenchmark [items] [rounds]
+ */
+public class BPTreeBenchmark {
+
+    // Branching factors compared by default
+    private static final int[] BRANCHING_FACTORS = {3, 4, 8, 16, 32, 64, 128, 256};
+
+    // Holds on to measured objects so they are not collected early
+    private static volatile Object sink;
+
+    /**
+     * Creates the random keys that are inserted in every round. Keys repeat on purpose since
+     * nutrient values in a food catalog contain many duplicates.
+     *
+     * @param items number of keys
+     * @return array of keys
+     */
+    private static Double[] keys(int items) {
+        Random rnd = new Random(42);
+        Double[] keys = new Double[items];
+        for (int i = 0; i < items; i++) {
+            keys[i] = (double) rnd.nextInt(items / 4 + 1);
+        }
+        return keys;
+    }
+
+    /**
+     * Measures the insert cost for one branching factor
+     *
+     * @param branchingFactor branching factor of the tree
+     * @param keys keys to insert
+     * @param rounds number of measured rounds
+     * @return best nanoseconds per insert
+     */
+    private static double insert(int branchingFactor, Double[] keys, int rounds) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= rounds; round++) {
+            BPTree<Double, Double> bpTree = new BPTree<>(branchingFactor);
+            long start = System.nanoTime();
+            for (Double key : keys) {
+                bpTree.insert(key, key);
+            }
+            double perInsert = (System.nanoTime() - start) / (double) keys.length;
+            // round 0 only warms up the JIT
+            if (round > 0) {
+                best = Math.min(best, perInsert);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Measures the cost of point lookups, which descend to one leaf and stop at the first key
+     * above the searched one
+     *
+     * @param branchingFactor branching factor of the tree
+     * @param keys keys to insert and then look up
+     * @param rounds number of measured rounds
+     * @return best nanoseconds per lookup
+     */
+    private static double lookup(int branchingFactor, Double[] keys, int rounds) {
+        BPTree<Double, Double> bpTree = new BPTree<>(branchingFactor);
+        for (Double key : keys) {
+            bpTree.insert(key, key);
+        }
+        double best = Double.MAX_VALUE;
+        long found = 0;
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            for (Double key : keys) {
+                found += bpTree.rangeSearch(key, "==").size();
+            }
+            double perLookup = (System.nanoTime() - start) / (double) keys.length;
+            if (round > 0) {
+                best = Math.min(best, perLookup);
+            }
+        }
+        // keep the results alive so the loop is not optimized away
+        if (found == 0) {
+            System.out.println("no keys found");
+        }
+        return best;
+    }
+
+    /**
+     * Finds the first key that is not below the searched one by walking the node from its first
+     * key, the way BPTree searches a node of up to BPTree.LINEAR_SEARCH_MAX keys
+     *
+     * @param keys sorted keys of a node
+     * @param key searched key
+     * @return position of the first key >= key, or keys.length
+     */
+    private static int linearLowerBound(Double[] keys, Double key) {
+        int position = 0;
+        while (position < keys.length && keys[position].compareTo(key) < 0) {
+            position++;
+        }
+        return position;
+    }
+
+
+    /**
+     * Same as linearLowerBound with the binary search BPTree.Node#lowerBound uses in larger nodes
+     *
+     * @param keys sorted keys of a node
+     * @param key searched key
+     * @return position of the first key >= key, or keys.length
+     */
+    private static int binaryLowerBound(Double[] keys, Double key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Compares a linear and a binary search inside full nodes of one branching factor. The
+     * searches run over many nodes in turn so the keys are not all in the L1 cache, as on a real
+     * descent, and both must find the same positions.
+     *
+     * @param branchingFactor branching factor, a full node holds one key less
+     * @param rounds number of measured rounds
+     * @return best nanoseconds per search, linear then binary
+     */
+    private static double[] nodeSearch(int branchingFactor, int rounds) {
+        int nodes = 4096;
+        int searches = 1 << 20;
+        Random rnd = new Random(branchingFactor);
+        // the keys of a node are boxed one by one as they arrive, so they are not next to each
+        // other on the heap: the boxes are created for all the nodes in random order
+        Double[][] keys = new Double[nodes][branchingFactor - 1];
+        List<Integer> slots = new ArrayList<Integer>();
+        for (int slot = 0; slot < nodes * (branchingFactor - 1); slot++) {
+            slots.add(slot);
+        }
+        Collections.shuffle(slots, rnd);
+        for (int slot : slots) {
+            int i = slot % (branchingFactor - 1);
+            keys[slot / (branchingFactor - 1)][i] = (double) (2 * i);
+        }
+        // odd keys fall between two keys of the node, like most searched keys
+        Double[] searched = new Double[searches];
+        for (int i = 0; i < searches; i++) {
+            searched[i] = (double) rnd.nextInt(2 * branchingFactor - 1);
+        }
+        double[] best = {Double.MAX_VALUE, Double.MAX_VALUE};
+        long[] positions = new long[2];
+        for (int round = 0; round <= rounds; round++) {
+            for (int binary = 0; binary < 2; binary++) {
+                long found = 0;
+                long start = System.nanoTime();
+                if (binary == 0) {
+                    for (int i = 0; i < searches; i++) {
+                        found += linearLowerBound(keys[i & (nodes - 1)], searched[i]);
+                    }
+                } else {
+                    for (int i = 0; i < searches; i++) {
+                        found += binaryLowerBound(keys[i & (nodes - 1)], searched[i]);
+                    }
+                }
+                double perSearch = (System.nanoTime() - start) / (double) searches;
+                if (round > 0) {
+                    best[binary] = Math.min(best[binary], perSearch);
+                }
+                positions[binary] = found;
+            }
+        }
+        if (positions[0] != positions[1]) {
+            throw new IllegalStateException("Linear and binary search disagree at bf="
+                            + branchingFactor);
+        }
+        return best;
+    }
+
+
+    /**
+     * Same as nodeSearch over the double[] keys of a DoubleBPTree node, the nutrient indexes:
+     * no key is boxed, so the keys of a node are next to each other in memory
+     *
+     * @param branchingFactor branching factor, a full node holds one key less
+     * @param rounds number of measured rounds
+     * @return best nanoseconds per search, linear then binary
+     */
+    private static double[] primitiveNodeSearch(int branchingFactor, int rounds) {
+        int nodes = 4096;
+        int searches = 1 << 20;
+        int size = branchingFactor - 1;
+        Random rnd = new Random(branchingFactor);
+        double[][] keys = new double[nodes][branchingFactor];
+        for (double[] node : keys) {
+            for (int i = 0; i < size; i++) {
+                node[i] = 2 * i;
+            }
+        }
+        double[] searched = new double[searches];
+        for (int i = 0; i < searches; i++) {
+            searched[i] = rnd.nextInt(2 * branchingFactor - 1);
+        }
+        double[] best = {Double.MAX_VALUE, Double.MAX_VALUE};
+        long[] positions = new long[2];
+        for (int round = 0; round <= rounds; round++) {
+            for (int binary = 0; binary < 2; binary++) {
+                long found = 0;
+                long start = System.nanoTime();
+                if (binary == 0) {
+                    for (int i = 0; i < searches; i++) {
+                        double[] node = keys[i & (nodes - 1)];
+                        int position = 0;
+                        while (position < size && node[position] < searched[i]) {
+                            position++;
+                        }
+                        found += position;
+                    }
+                } else {
+                    for (int i = 0; i < searches; i++) {
+                        double[] node = keys[i & (nodes - 1)];
+                        int low = 0;
+                        int high = size;
+                        while (low < high) {
+                            int mid = (low + high) >>> 1;
+                            if (node[mid] < searched[i]) {
+                                low = mid + 1;
+                            } else {
+                                high = mid;
+                            }
+                        }
+                        found += low;
+                    }
+                }
+                double perSearch = (System.nanoTime() - start) / (double) searches;
+                if (round > 0) {
+                    best[binary] = Math.min(best[binary], perSearch);
+                }
+                positions[binary] = found;
+            }
+        }
+        if (positions[0] != positions[1]) {
+            throw new IllegalStateException("Linear and binary search disagree at bf="
+                            + branchingFactor);
+        }
+        return best;
+    }
+
+
+    /**
+     * Gets the heap in use after a full collection
+     *
+     * @return bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Compares the heap held by a BPTree and a DoubleBPTree index over the same keys. The values
+     * themselves are shared by both and not counted.
+     *
+     * @param branchingFactor branching factor of the trees
+     * @param keys keys to insert
+     */
+    private static void heap(int branchingFactor, Double[] keys) {
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < keys.length; i++) {
+            values.add(new Object());
+        }
+
+        long before = usedHeap();
+        BPTree<Double, Object> bpTree = new BPTree<>(branchingFactor);
+        for (int i = 0; i < keys.length; i++) {
+            // a fresh box per key, the way keys arrive from a parsed file
+            bpTree.insert(Double.valueOf(keys[i].doubleValue()), values.get(i));
+        }
+        long boxed = usedHeap() - before;
+
+        before = usedHeap();
+        DoubleBPTree<Object> doubleTree = new DoubleBPTree<>(branchingFactor, values);
+        for (int i = 0; i < keys.length; i++) {
+            doubleTree.insertOrdinal(keys[i], i);
+        }
+        long primitive = usedHeap() - before;
+
+        System.out.println(String.format("index heap at bf=%d: BPTree %.1f MB, DoubleBPTree %.1f MB",
+                        branchingFactor, boxed / 1e6, primitive / 1e6));
+        // keep both trees reachable until both were measured
+        sink = bpTree;
+        sink = doubleTree;
+    }
+
+    /**
+     * Writes the keys to a mapped index file and measures how long it takes to open it again,
+     * which does not depend on the number of entries
+     *
+     * @param keys keys of the index
+     * @throws IOException
+     */
+    private static void mapped(Double[] keys) throws IOException {
+        double[] sortedKeys = new double[keys.length];
+        int[] ordinals = new int[keys.length];
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < keys.length; i++) {
+            sortedKeys[i] = keys[i];
+            ordinals[i] = i;
+            values.add(keys[i]);
+        }
+        DoubleBPTree.sort(sortedKeys, ordinals);
+        File file = File.createTempFile("bptree", ".idx");
+        try {
+            long start = System.nanoTime();
+            MappedBPTree.write(file.getPath(), sortedKeys, ordinals);
+            double write = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            MappedBPTree<Object> tree = new MappedBPTree<Object>(file.getPath(), values);
+            double open = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            int found = tree.rangeSearch(sortedKeys[keys.length / 2], "==").size();
+            double lookup = (System.nanoTime() - start) / 1e6;
+            System.out.println(String.format("mapped index: write %.1f ms, open %.2f ms, "
+                            + "first lookup %.2f ms (%d found), file %.1f MB", write, open, lookup,
+                            found, file.length() / 1e6));
+        } finally {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Measures the throughput of a ConcurrentBPTree shared by several threads that mix range
+     * searches with inserts. Every thread runs for the same wall clock time and picks an insert
+     * with the given probability.
+     *
+     * @param keys keys to load before the run and to insert during it
+     * @param threads number of threads
+     * @param writeRatio share of inserts among all operations
+     * @param millis length of the run
+     * @return operations per second over all threads
+     * @throws InterruptedException
+     */
+    private static double mixed(Double[] keys, int threads, double writeRatio, long millis)
+                    throws InterruptedException {
+        ConcurrentBPTree<Double, Double> bpTree =
+                        new ConcurrentBPTree<Double, Double>(new BPTree<Double, Double>(16));
+        for (Double key : keys) {
+            bpTree.insert(key, key);
+        }
+        AtomicLong operations = new AtomicLong();
+        long end = System.nanoTime() + millis * 1000000L;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers.add(new Thread(() -> {
+                Random rnd = new Random(seed);
+                long done = 0;
+                long found = 0;
+                while (System.nanoTime() < end) {
+                    Double key = keys[rnd.nextInt(keys.length)];
+                    if (rnd.nextDouble() < writeRatio) {
+                        bpTree.insert(key, key);
+                    } else {
+                        found += bpTree.rangeSearch(key, key + 4, "[]").size();
+                    }
+                    done++;
+                }
+                operations.addAndGet(done);
+                sink = found;
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.get() * 1000.0 / millis;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Double[] keys = keys(items);
+
+        System.out.println("items=" + items + " rounds=" + rounds);
+        System.out.println(String.format("%6s %14s %14s %14s", "bf", "insert ns/op", "inserts/s",
+                        "lookup ns/op"));
+        for (int branchingFactor : BRANCHING_FACTORS) {
+            double insert = insert(branchingFactor, keys, rounds);
+            System.out.println(String.format("%6d %14.1f %14.0f %14.1f", branchingFactor, insert,
+                            1e9 / insert, lookup(branchingFactor, keys, rounds)));
+        }
+
+        // the nodes below LINEAR_SEARCH_MAX keys are scanned, the larger ones bisected
+        System.out.println(String.format("%6s %14s %14s %8s", "bf", "linear ns/op", "binary ns/op",
+                        "speed-up"));
+        for (int branchingFactor : BRANCHING_FACTORS) {
+            double[] search = nodeSearch(branchingFactor, rounds);
+            System.out.println(String.format("%6d %14.1f %14.1f %7.2fx", branchingFactor,
+                            search[0], search[1], search[0] / search[1]));
+        }
+        System.out.println(String.format("%6s %14s %14s %8s", "bf", "double[] lin", "double[] bin",
+                        "speed-up"));
+        for (int branchingFactor : BRANCHING_FACTORS) {
+            double[] search = primitiveNodeSearch(branchingFactor, rounds);
+            System.out.println(String.format("%6d %14.1f %14.1f %7.2fx", branchingFactor,
+                            search[0], search[1], search[0] / search[1]));
+        }
+        heap(16, keys);
+        mapped(keys);
+
+        System.out.println(String.format("%8s %8s %14s", "threads", "writes", "mixed ops/s"));
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            for (double writeRatio : new double[] {0.01, 0.1, 0.5}) {
+                System.out.println(String.format("%8d %7.0f%% %14.0f", threads, writeRatio * 100,
+                                mixed(keys, threads, writeRatio, 1000)));
+            }
+        }
+    }
+}
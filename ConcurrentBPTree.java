@@ -0,0 +1,390 @@
+package application;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+
+/**
+ * Thread-safe mode for any BPTreeADT. Writers take turns through the write lock of a fair
+ * ReentrantReadWriteLock, while any number of readers search at the same time under its read
+ * lock. A search never runs while a write is in progress: the nodes, their arrays and the lists
+ * they fill are plain fields, and a search that overlapped a split could loop, fail or return a
+ * wrong result in ways no validation afterwards can catch. The lock is fair so that a steady
+ * stream of searches cannot keep a writer waiting. The wrapped tree must not be used directly
+ * once it is wrapped.
+ *
+ * Readers therefore do block: a search waits for the write in progress, and with a fair lock a
+ * new search also waits behind a writer that is already queued. Searches that never block, with
+ * version-validated node reads and latch coupling on writes, would need every node to publish
+ * its keys and children safely and be re-read after a split; BPTree's nodes are not built for
+ * that, so this mode serializes the writes against the searches instead.
+ *
+ * A lazy spliterator cannot hold the read lock between two calls, so it takes it for each advance
+ * and is fail-fast: the version of the tree, counted up by every write, must still be the one it
+ * was created at, or it throws ConcurrentModificationException.
+ *
+ * @param <K> key - expect a string that is the type of id for each item
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class ConcurrentBPTree<K, V> implements BPTreeADT<K, V> {
+
+    // The tree that is made thread-safe
+    private final BPTreeADT<K, V> tree;
+
+    // Shared lock for the readers, exclusive lock for the writers
+    private final ReadWriteLock lock;
+
+    // Number of writes so far, only changed under the write lock
+    private volatile long version;
+
+
+    /**
+     * Public constructor
+     *
+     * @param tree the tree to share between threads
+     */
+    public ConcurrentBPTree(BPTreeADT<K, V> tree) {
+        this.tree = tree;
+        this.lock = new ReentrantReadWriteLock(true);
+    }
+
+
+    /**
+     * Runs a read-only search under the read lock, at the same time as other searches but never
+     * during a write
+     *
+     * @param query the read-only search
+     * @return the result of the search
+     */
+    private <T> T read(Supplier<T> query) {
+        lock.readLock().lock();
+        try {
+            return query.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(K key, V value) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            tree.insert(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#remove(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean remove(K key, V value) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            return tree.remove(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#update(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean update(K oldKey, K newKey, V value) {
+        lock.writeLock().lock();
+        try {
+            version++;
+            // readers never see the entry missing from both keys
+            return tree.update(oldKey, newKey, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(K key, String comparator) {
+        return read(() -> tree.rangeSearch(key, comparator));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(K lowKey, K highKey, String inclusivity) {
+        return read(() -> tree.rangeSearch(lowKey, highKey, inclusivity));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#ascending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> ascending(K fromKey, int limit) {
+        return read(() -> tree.ascending(fromKey, limit));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#descending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> descending(K fromKey, int limit) {
+        return read(() -> tree.descending(fromKey, limit));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#spliterator(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public Spliterator<V> spliterator(K lowKey, K highKey, String inclusivity) {
+        lock.readLock().lock();
+        try {
+            return new ValidatingSpliterator(tree.spliterator(lowKey, highKey, inclusivity),
+                            version);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Spliterator of the wrapped tree that reads it under the read lock, and only while no write
+     * has happened since it was created
+     */
+    private class ValidatingSpliterator implements Spliterator<V> {
+
+        // Spliterator of the wrapped tree
+        private final Spliterator<V> spliterator;
+
+        // Version of the tree the scan started at
+        private final long startVersion;
+
+        // Value read by the last advance, handed out once the lock is released
+        private V next;
+
+        /**
+         * Package constructor
+         */
+        ValidatingSpliterator(Spliterator<V> spliterator, long startVersion) {
+            this.spliterator = spliterator;
+            this.startVersion = startVersion;
+        }
+
+        /**
+         * Checks that no write happened since the scan started, under the read lock
+         */
+        private void validate() {
+            if (version != startVersion) {
+                throw new ConcurrentModificationException("The tree changed during the scan");
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            boolean advanced;
+            lock.readLock().lock();
+            try {
+                validate();
+                advanced = spliterator.tryAdvance(value -> next = value);
+            } finally {
+                lock.readLock().unlock();
+            }
+            // the action runs without the lock, it may change the tree itself
+            if (advanced) {
+                V value = next;
+                next = null;
+                action.accept(value);
+            }
+            return advanced;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#trySplit()
+         */
+        @Override
+        public Spliterator<V> trySplit() {
+            Spliterator<V> prefix;
+            lock.readLock().lock();
+            try {
+                validate();
+                prefix = spliterator.trySplit();
+            } finally {
+                lock.readLock().unlock();
+            }
+            return prefix == null ? null : new ValidatingSpliterator(prefix, startVersion);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#estimateSize()
+         */
+        @Override
+        public long estimateSize() {
+            lock.readLock().lock();
+            try {
+                return spliterator.estimateSize();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#characteristics()
+         */
+        @Override
+        public int characteristics() {
+            return spliterator.characteristics();
+        }
+
+    } // End of class ValidatingSpliterator
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return tree.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Stress test: one writer inserts distinct keys in random order while several readers run
+     * range and point searches and check every result they get. A reader must always see sorted
+     * keys inside its range, and must find every key the writer finished inserting before the
+     * search started.
+     *
+     * Usage: java application.ConcurrentBPTree [keys] [readers]
+     *
+     * @param args
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < keys; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+
+        ConcurrentBPTree<Integer, Integer> bpTree =
+                        new ConcurrentBPTree<Integer, Integer>(new BPTree<Integer, Integer>(16));
+        // number of keys in order that are completely inserted
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger searches = new AtomicInteger();
+
+        Thread writer = new Thread(() -> {
+            for (int key : order) {
+                bpTree.insert(key, key);
+                inserted.incrementAndGet();
+            }
+        });
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; r++) {
+            long seed = r;
+            threads.add(new Thread(() -> {
+                Random rnd = new Random(seed);
+                while (inserted.get() < keys) {
+                    int done = inserted.get();
+                    if (done > 0) {
+                        int expected = order.get(rnd.nextInt(done));
+                        if (!bpTree.rangeSearch(expected, "==").contains(expected)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    int low = rnd.nextInt(keys);
+                    int high = low + rnd.nextInt(100);
+                    List<Integer> found = bpTree.rangeSearch(low, high, "[]");
+                    for (int i = 0; i < found.size(); i++) {
+                        int key = found.get(i);
+                        if (key < low || key > high || (i > 0 && found.get(i - 1) >= key)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    searches.incrementAndGet();
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        writer.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        writer.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (bpTree.rangeSearch(null, null, "[]").size() != keys) {
+            failures.incrementAndGet();
+        }
+        System.out.println(String.format("%d inserts and %d concurrent searches in %.2f s, "
+                        + "%d failures", keys, searches.get(), seconds, failures.get()));
+        if (failures.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+} // End of class ConcurrentBPTree
@@ -0,0 +1,1547 @@
+package application;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+
+/**
+ * B+ tree specialized for primitive double keys, used for the nutrient indexes. It follows the
+ * same algorithms as BPTree, but every node keeps its keys in a double[] and every leaf keeps its
+ * values as int ordinals in a parallel int[], so inserts and searches never box a key and the
+ * index holds no Double or ArrayList objects.
+ *
+ * An ordinal is the position of a value in a values list. A tree created with
+ * {@link #DoubleBPTree(int)} owns that list and appends to it on every insert. A tree created with
+ * {@link #DoubleBPTree(int, List)} shares a list owned by the caller, so several indexes over the
+ * same items store the items only once; the caller then inserts with
+ * {@link #insertOrdinal(double, int)} and {@link #removeOrdinal(double, int)}. Removing an entry never
+ * removes its value from the list, so the ordinals of the other values stay valid.
+ *
+ * Every node also keeps the number of entries and the sum of the keys of its subtree, updated on
+ * the path of each change. A count or a sum over a range then adds up whole subtrees between the
+ * two bounds and only looks inside the nodes on the paths to the bounds, in O(log N).
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class DoubleBPTree<V> implements NutrientIndexADT<V> {
+
+    // Root of the tree
+    private Node root;
+
+    // Branching factor is the number of children nodes
+    // for internal nodes of the tree
+    private int branchingFactor;
+
+    // Values by ordinal
+    private List<V> values;
+
+    // Whether the values list belongs to this tree
+    private boolean ownsValues;
+
+
+    /**
+     * Public constructor, the tree keeps its own list of values
+     *
+     * @param branchingFactor
+     */
+    public DoubleBPTree(int branchingFactor) {
+        this(branchingFactor, new ArrayList<V>());
+        this.ownsValues = true;
+    }
+
+
+    /**
+     * Public constructor for a tree whose ordinals refer to a list owned by the caller
+     *
+     * @param branchingFactor
+     * @param values values by ordinal
+     */
+    public DoubleBPTree(int branchingFactor, List<V> values) {
+        if (branchingFactor <= 2) {
+            throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
+        }
+        this.branchingFactor = branchingFactor;
+        this.values = values;
+        this.ownsValues = false;
+        this.root = new LeafNode();
+    }
+
+
+    /**
+     * Bulk-load constructor. Builds the tree bottom-up from keys that are already sorted, the
+     * same way as the BPTree bulk-load constructor: leaves are packed to the fill factor and
+     * linked, then each level of internal nodes is built over the one below.
+     *
+     * @param branchingFactor
+     * @param values values by ordinal
+     * @param sortedKeys keys in ascending order, duplicates allowed
+     * @param ordinals ordinal of the value of each key
+     * @param fillFactor fraction of each node that is filled, in (0, 1]
+     * @see #sort(double[], int[])
+     */
+    public DoubleBPTree(int branchingFactor, List<V> values, double[] sortedKeys, int[] ordinals,
+                    double fillFactor) {
+        this(branchingFactor, values);
+        if (!(fillFactor > 0 && fillFactor <= 1)) {
+            throw new IllegalArgumentException("Illegal fill factor: " + fillFactor);
+        }
+        if (sortedKeys.length != ordinals.length) {
+            throw new IllegalArgumentException("Keys and ordinals differ in length");
+        }
+        for (int i = 0; i < sortedKeys.length; i++) {
+            checkKey(sortedKeys[i]);
+            if (i > 0 && sortedKeys[i - 1] > sortedKeys[i]) {
+                throw new IllegalArgumentException("Keys are not sorted: " + sortedKeys[i]
+                                + " after " + sortedKeys[i - 1]);
+            }
+        }
+        int length = sortedKeys.length;
+        if (length == 0) {
+            return;
+        }
+
+        // a leaf overflows at branchingFactor keys, an internal node at branchingFactor children
+        int perLeaf = Math.max(1, Math.min(branchingFactor - 1,
+                        (int) Math.round(fillFactor * (branchingFactor - 1))));
+        int perNode = Math.max(3, Math.min(branchingFactor,
+                        (int) Math.round(fillFactor * branchingFactor)));
+
+        // spread the keys evenly so the last node is not left nearly empty
+        Node[] level = newNodeArray((length + perLeaf - 1) / perLeaf);
+        LeafNode previous = null;
+        for (int leaf = 0, from = 0; leaf < level.length; leaf++) {
+            int to = from + (length - from) / (level.length - leaf);
+            LeafNode node = new LeafNode();
+            System.arraycopy(sortedKeys, from, node.keys, 0, to - from);
+            System.arraycopy(ordinals, from, node.ordinals, 0, to - from);
+            node.size = to - from;
+            node.recount();
+            node.previous = previous;
+            if (previous != null) {
+                previous.next = node;
+            }
+            previous = node;
+            level[leaf] = node;
+            from = to;
+        }
+
+        while (level.length > 1) {
+            Node[] parents = newNodeArray((level.length + perNode - 1) / perNode);
+            for (int parent = 0, from = 0; parent < parents.length; parent++) {
+                int to = from + (level.length - from) / (parents.length - parent);
+                InternalNode node = new InternalNode();
+                System.arraycopy(level, from, node.children, 0, to - from);
+                for (int i = from + 1; i < to; i++) {
+                    node.keys[i - from - 1] = level[i].getFirstLeafKey();
+                }
+                node.size = to - from - 1;
+                node.recount();
+                parents[parent] = node;
+                from = to;
+            }
+            level = parents;
+        }
+        root = level[0];
+    }
+
+
+    /**
+     * Sorts keys in ascending order and moves the ordinals along with them, so the pair can be
+     * handed to the bulk-load constructor without boxing. Equal keys are not kept in any
+     * particular order.
+     *
+     * @param keys keys to sort in place
+     * @param ordinals ordinals to permute in place
+     */
+    public static void sort(double[] keys, int[] ordinals) {
+        if (keys.length != ordinals.length) {
+            throw new IllegalArgumentException("Keys and ordinals differ in length");
+        }
+        sort(keys, ordinals, 0, keys.length - 1);
+    }
+
+
+    /**
+     * Three-way quicksort on keys[low..high], so long runs of equal nutrient values are handled
+     * in one pass. It recurses into the smaller part only to bound the stack depth.
+     */
+    private static void sort(double[] keys, int[] ordinals, int low, int high) {
+        while (high - low > 16) {
+            int middle = (low + high) >>> 1;
+            // median of three keeps already sorted input from degrading
+            if (keys[middle] < keys[low]) {
+                swap(keys, ordinals, middle, low);
+            }
+            if (keys[high] < keys[low]) {
+                swap(keys, ordinals, high, low);
+            }
+            if (keys[high] < keys[middle]) {
+                swap(keys, ordinals, high, middle);
+            }
+            double pivot = keys[middle];
+            int lt = low;
+            int gt = high;
+            int i = low;
+            while (i <= gt) {
+                if (keys[i] < pivot) {
+                    swap(keys, ordinals, lt++, i++);
+                } else if (keys[i] > pivot) {
+                    swap(keys, ordinals, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            if (lt - low < high - gt) {
+                sort(keys, ordinals, low, lt - 1);
+                low = gt + 1;
+            } else {
+                sort(keys, ordinals, gt + 1, high);
+                high = lt - 1;
+            }
+        }
+        // insertion sort for the short ranges
+        for (int i = low + 1; i <= high; i++) {
+            double key = keys[i];
+            int ordinal = ordinals[i];
+            int j = i - 1;
+            while (j >= low && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                ordinals[j + 1] = ordinals[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            ordinals[j + 1] = ordinal;
+        }
+    }
+
+
+    private static void swap(double[] keys, int[] ordinals, int i, int j) {
+        double key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int ordinal = ordinals[i];
+        ordinals[i] = ordinals[j];
+        ordinals[j] = ordinal;
+    }
+
+
+    /**
+     * Creates an array of nodes, which cannot be done directly for an inner class of a generic
+     * type
+     *
+     * @param length
+     * @return array of nulls
+     */
+    @SuppressWarnings("unchecked")
+    private Node[] newNodeArray(int length) {
+        return (Node[]) new DoubleBPTree<?>.Node[length];
+    }
+
+
+    /**
+     * NaN has no place in the key order, so it is rejected up front
+     *
+     * @param key
+     */
+    private static void checkKey(double key) {
+        if (Double.isNaN(key)) {
+            throw new IllegalArgumentException("Illegal key: " + key);
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Double key, V value) {
+        if (!ownsValues) {
+            throw new UnsupportedOperationException("Ordinals are assigned by the owner of the"
+                            + " values, use insertOrdinal(double, int)");
+        }
+        values.add(value);
+        insertOrdinal(key.doubleValue(), values.size() - 1);
+    }
+
+
+    /**
+     * Inserts a key and the ordinal of its value
+     *
+     * Note: key-ordinal pairs with duplicate keys can be inserted into the tree.
+     *
+     * @param key
+     * @param ordinal position of the value in the values list
+     */
+    public void insertOrdinal(double key, int ordinal) {
+        checkKey(key);
+        root.insert(key, ordinal);
+        InternalNode result = root.split();
+
+        if (result != null) {
+            // The old root was split into two parts.
+            // We have to create a new root pointing to them
+            root = result;
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#remove(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean remove(Double key, V value) {
+        return key != null && delete(key.doubleValue(), -1, value) >= 0;
+    }
+
+
+    /**
+     * Removes the entry with the given key and ordinal
+     *
+     * @param key
+     * @param ordinal position of the value in the values list
+     * @return true if the entry was removed, false if there was none
+     */
+    public boolean removeOrdinal(double key, int ordinal) {
+        if (ordinal < 0) {
+            throw new IllegalArgumentException("Illegal ordinal: " + ordinal);
+        }
+        return delete(key, ordinal, null) >= 0;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#update(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean update(Double oldKey, Double newKey, V value) {
+        if (oldKey == null || newKey == null) {
+            return false;
+        }
+        checkKey(newKey.doubleValue());
+        int ordinal = delete(oldKey.doubleValue(), -1, value);
+        if (ordinal < 0) {
+            return false;
+        }
+        // the value keeps its ordinal, so nothing is appended to the values list
+        insertOrdinal(newKey.doubleValue(), ordinal);
+        return true;
+    }
+
+
+    /**
+     * Moves the entry with the given ordinal to a new key
+     *
+     * @param oldKey current key of the entry
+     * @param newKey key the entry is moved to
+     * @param ordinal position of the value in the values list
+     * @return true if the entry was found and moved
+     */
+    public boolean updateOrdinal(double oldKey, double newKey, int ordinal) {
+        checkKey(newKey);
+        if (!removeOrdinal(oldKey, ordinal)) {
+            return false;
+        }
+        insertOrdinal(newKey, ordinal);
+        return true;
+    }
+
+
+    /**
+     * Removes one entry and fixes the root if its last two children were merged
+     *
+     * @param key
+     * @param ordinal ordinal of the entry, or -1 to match the value instead
+     * @param value value of the entry when no ordinal is given
+     * @return ordinal of the removed entry, or -1 if none matched
+     */
+    private int delete(double key, int ordinal, Object value) {
+        int removed = root.remove(key, ordinal, value);
+        if (removed >= 0 && root instanceof DoubleBPTree.InternalNode && root.size == 0) {
+            root = ((InternalNode) root).children[0];
+        }
+        return removed;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double key, String comparator) {
+        if (key == null || comparator == null) {
+            return new ArrayList<V>();
+        }
+        double value = key.doubleValue();
+        if (comparator.contentEquals(">=")) {
+            return scan(value, Double.POSITIVE_INFINITY, true, true);
+        } else if (comparator.contentEquals("==")) {
+            return scan(value, value, true, true);
+        } else if (comparator.contentEquals("<=")) {
+            return scan(Double.NEGATIVE_INFINITY, value, true, true);
+        } else {
+            return new ArrayList<V>();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double lowKey, Double highKey, String inclusivity) {
+        if (inclusivity == null || inclusivity.length() != 2
+                        || "[(".indexOf(inclusivity.charAt(0)) < 0
+                        || "])".indexOf(inclusivity.charAt(1)) < 0) {
+            return new ArrayList<V>();
+        }
+        // an open side becomes an infinite bound, which every key satisfies
+        return scan(lowKey == null ? Double.NEGATIVE_INFINITY : lowKey.doubleValue(),
+                        highKey == null ? Double.POSITIVE_INFINITY : highKey.doubleValue(),
+                        lowKey == null || inclusivity.charAt(0) == '[',
+                        highKey == null || inclusivity.charAt(1) == ']');
+    }
+
+
+    /**
+     * Sets the bit of the ordinal of every entry whose key lies in a closed range. The results
+     * of several ranges can then be combined a word at a time with BitSet.and, without a list of
+     * values.
+     *
+     * @param lowKey lower bound, negative infinity if the range is open below
+     * @param highKey upper bound, positive infinity if the range is open above
+     * @param ordinals the bits to set
+     */
+    @Override
+    public void rangeOrdinals(double lowKey, double highKey, BitSet ordinals) {
+        scan(lowKey, highKey, true, true, ordinals::set);
+    }
+
+
+    /**
+     * Collects the values of a range scan
+     *
+     * @see #scan(double, double, boolean, boolean, IntConsumer)
+     * @return values in ascending key order
+     */
+    private List<V> scan(double lowKey, double highKey, boolean lowInclusive,
+                    boolean highInclusive) {
+        List<V> returnList = new ArrayList<V>();
+        scan(lowKey, highKey, lowInclusive, highInclusive,
+                        ordinal -> returnList.add(values.get(ordinal)));
+        return returnList;
+    }
+
+
+    /**
+     * Range scan engine shared by all searches, see BPTree#scan. It descends once to the first
+     * leaf that can hold the low key, then walks the leaf chain forward and stops at the first
+     * key above the high key.
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @param lowInclusive whether keys equal to lowKey qualify
+     * @param highInclusive whether keys equal to highKey qualify
+     * @param ordinals receives the ordinals in ascending key order
+     */
+    private void scan(double lowKey, double highKey, boolean lowInclusive,
+                    boolean highInclusive, IntConsumer ordinals) {
+        LeafNode leaf = root.findLeaf(lowKey);
+        int i = leaf.lowerBound(lowKey);
+        while (leaf != null) {
+            for (; i < leaf.size; i++) {
+                double key = leaf.keys[i];
+                if (!lowInclusive && key == lowKey) {
+                    // equal keys may run over several leaves
+                    continue;
+                }
+                if (key > highKey || (!highInclusive && key == highKey)) {
+                    return;
+                }
+                ordinals.accept(leaf.ordinals[i]);
+            }
+            leaf = leaf.next;
+            i = 0;
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#ascending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> ascending(Double fromKey, int limit) {
+        List<V> returnList = new ArrayList<V>();
+        double key = fromKey == null ? Double.NEGATIVE_INFINITY : fromKey.doubleValue();
+        LeafNode leaf = root.findLeaf(key);
+        int i = leaf.lowerBound(key);
+        while (leaf != null && returnList.size() < limit) {
+            if (i < leaf.size) {
+                returnList.add(values.get(leaf.ordinals[i++]));
+            } else {
+                leaf = leaf.next;
+                i = 0;
+            }
+        }
+        return returnList;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#descending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> descending(Double fromKey, int limit) {
+        List<V> returnList = new ArrayList<V>();
+        LeafNode leaf;
+        int i;
+        if (fromKey == null || fromKey.doubleValue() == Double.POSITIVE_INFINITY) {
+            leaf = root.findLeaf(Double.POSITIVE_INFINITY);
+            while (leaf.next != null) {
+                leaf = leaf.next;
+            }
+            i = leaf.size - 1;
+        } else {
+            // the last key not above fromKey comes right before the first key above it
+            double after = Math.nextUp(fromKey.doubleValue());
+            leaf = root.findLeaf(after);
+            i = leaf.lowerBound(after) - 1;
+        }
+        while (leaf != null && returnList.size() < limit) {
+            if (i >= 0) {
+                returnList.add(values.get(leaf.ordinals[i--]));
+            } else {
+                leaf = leaf.previous;
+                i = leaf == null ? -1 : leaf.size - 1;
+            }
+        }
+        return returnList;
+    }
+
+
+    /**
+     * Gets the number of entries in the tree
+     *
+     * @return size
+     */
+    public int size() {
+        return root.subtreeSize;
+    }
+
+
+    /**
+     * Gets the share of entries whose keys lie in a closed range, from the subtree counts. Used
+     * to decide which of several ranges is the cheapest to scan.
+     *
+     * @param lowKey lower bound, negative infinity if the range is open below
+     * @param highKey upper bound, positive infinity if the range is open above
+     * @return share of the entries, between 0 and 1
+     */
+    @Override
+    public double estimateFraction(double lowKey, double highKey) {
+        return root.subtreeSize == 0 ? 0 : (double) count(lowKey, highKey) / root.subtreeSize;
+    }
+
+
+    /**
+     * Counts the entries whose keys lie in a closed range in O(log N), without visiting them
+     *
+     * @param lowKey lower bound, negative infinity if the range is open below
+     * @param highKey upper bound, positive infinity if the range is open above
+     * @return number of entries
+     */
+    @Override
+    public int count(double lowKey, double highKey) {
+        return lowKey <= highKey ? root.countRange(lowKey, highKey) : 0;
+    }
+
+
+    /**
+     * Adds up the keys that lie in a closed range in O(log N), without visiting them
+     *
+     * @param lowKey lower bound, negative infinity if the range is open below
+     * @param highKey upper bound, positive infinity if the range is open above
+     * @return sum of the keys, 0 if there are none
+     */
+    @Override
+    public double sum(double lowKey, double highKey) {
+        return lowKey <= highKey ? root.sumRange(lowKey, highKey) : 0;
+    }
+
+
+    /**
+     * Gets the count, sum, smallest and largest of the keys that lie in a closed range. The
+     * smallest and largest keys are the ends of the range in the leaf chain, so nothing between
+     * them is visited.
+     *
+     * @param lowKey lower bound, negative infinity if the range is open below
+     * @param highKey upper bound, positive infinity if the range is open above
+     * @return statistics of the keys
+     */
+    @Override
+    public RangeStatistics statistics(double lowKey, double highKey) {
+        int count = count(lowKey, highKey);
+        if (count == 0) {
+            return new RangeStatistics(0, 0, Double.NaN, Double.NaN);
+        }
+        // the range is not empty, so its first key follows lowKey and its last precedes highKey
+        LeafNode first = root.findLeaf(lowKey);
+        int i = first.lowerBound(lowKey);
+        if (i == first.size) {
+            first = first.next;
+            i = 0;
+        }
+        LeafNode last;
+        int j;
+        if (highKey == Double.POSITIVE_INFINITY) {
+            last = root.findLeaf(Double.POSITIVE_INFINITY);
+            while (last.next != null) {
+                last = last.next;
+            }
+            j = last.size - 1;
+        } else {
+            last = root.findLeaf(Math.nextUp(highKey));
+            j = last.lowerBound(Math.nextUp(highKey)) - 1;
+            if (j < 0) {
+                last = last.previous;
+                j = last.size - 1;
+            }
+        }
+        return new RangeStatistics(count, sum(lowKey, highKey), first.keys[i], last.keys[j]);
+    }
+
+
+    /**
+     * Gets the ordinals of all entries in ascending key order, by walking the leaf chain. Handed
+     * back to the bulk-load constructor with the keys of those ordinals, they rebuild the same
+     * index without sorting.
+     *
+     * @return ordinals
+     */
+    @Override
+    public int[] ordinals() {
+        int[] ordinals = new int[16];
+        int count = 0;
+        for (LeafNode leaf = root.findLeaf(Double.NEGATIVE_INFINITY); leaf != null;
+                        leaf = leaf.next) {
+            if (count + leaf.size > ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, Math.max(count + leaf.size, 2 * ordinals.length));
+            }
+            System.arraycopy(leaf.ordinals, 0, ordinals, count, leaf.size);
+            count += leaf.size;
+        }
+        return Arrays.copyOf(ordinals, count);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#spliterator(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public Spliterator<V> spliterator(Double lowKey, Double highKey, String inclusivity) {
+        if (inclusivity == null || inclusivity.length() != 2
+                        || "[(".indexOf(inclusivity.charAt(0)) < 0
+                        || "])".indexOf(inclusivity.charAt(1)) < 0) {
+            return Spliterators.emptySpliterator();
+        }
+        return new RangeSpliterator(lowKey == null ? Double.NEGATIVE_INFINITY : lowKey.doubleValue(),
+                        highKey == null ? Double.POSITIVE_INFINITY : highKey.doubleValue(),
+                        lowKey == null || inclusivity.charAt(0) == '[',
+                        highKey == null || inclusivity.charAt(1) == ']', root);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Arrays.asList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof DoubleBPTree.InternalNode) {
+                        InternalNode internal = (InternalNode) node;
+                        nextQueue.add(Arrays.asList(internal.children)
+                                        .subList(0, internal.size + 1));
+                    }
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else {
+                    sb.append('\n');
+                }
+            }
+            queue = nextQueue;
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Lazy range scan by subtree, see BPTree.RangeSpliterator. Only the children whose separators
+     * overlap the range are entered, and a split hands the current leaf and the first half of the
+     * pending subtrees to a new spliterator.
+     */
+    private class RangeSpliterator implements Spliterator<V> {
+
+        // Bounds of the range, infinite if that side is open
+        final double lowKey;
+        final double highKey;
+
+        // Whether keys equal to each bound qualify
+        final boolean lowInclusive;
+        final boolean highInclusive;
+
+        // Subtrees after the current leaf, in key order
+        final ArrayDeque<Node> pending = new ArrayDeque<Node>();
+
+        // Leaf being read and the position of its next entry, null before the first one
+        LeafNode leaf;
+        int i;
+
+        // Set once a key above the range was seen
+        boolean done;
+
+        // Values left, a guess halved on every split
+        long estimate = Long.MAX_VALUE;
+
+        /**
+         * Package constructor
+         *
+         * @param root subtree to scan, or null to start with none
+         */
+        RangeSpliterator(double lowKey, double highKey, boolean lowInclusive,
+                        boolean highInclusive, Node root) {
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.lowInclusive = lowInclusive;
+            this.highInclusive = highInclusive;
+            if (root != null) {
+                pending.add(root);
+            }
+        }
+
+        /**
+         * Gets the first child of a node that can hold keys in the range
+         */
+        int firstChild(InternalNode node) {
+            return node.lowerBound(lowKey);
+        }
+
+        /**
+         * Gets the last child of a node that can hold keys in the range
+         */
+        int lastChild(InternalNode node) {
+            return highKey == Double.POSITIVE_INFINITY ? node.size
+                            : node.lowerBound(Math.nextUp(highKey));
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            while (!done) {
+                if (leaf != null && i < leaf.size) {
+                    double key = leaf.keys[i];
+                    int ordinal = leaf.ordinals[i++];
+                    if (!lowInclusive && key == lowKey) {
+                        continue;
+                    }
+                    if (key > highKey || (!highInclusive && key == highKey)) {
+                        done = true;
+                        return false;
+                    }
+                    action.accept(values.get(ordinal));
+                    return true;
+                }
+                Node node = pending.pollFirst();
+                if (node == null) {
+                    done = true;
+                    return false;
+                }
+                // go down the leftmost path, the siblings on the right wait their turn
+                while (node instanceof DoubleBPTree.InternalNode) {
+                    InternalNode internal = (InternalNode) node;
+                    int first = firstChild(internal);
+                    for (int child = lastChild(internal); child > first; child--) {
+                        pending.addFirst(internal.children[child]);
+                    }
+                    node = internal.children[first];
+                }
+                leaf = (LeafNode) node;
+                i = leaf.lowerBound(lowKey);
+            }
+            return false;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#trySplit()
+         */
+        @Override
+        public Spliterator<V> trySplit() {
+            if (done) {
+                return null;
+            }
+            while (pending.size() == 1
+                            && pending.peekFirst() instanceof DoubleBPTree.InternalNode) {
+                InternalNode internal = (InternalNode) pending.pollFirst();
+                for (int child = firstChild(internal); child <= lastChild(internal); child++) {
+                    pending.addLast(internal.children[child]);
+                }
+            }
+            int half = pending.size() / 2;
+            if (half == 0) {
+                return null;
+            }
+            RangeSpliterator prefix = new RangeSpliterator(lowKey, highKey, lowInclusive,
+                            highInclusive, null);
+            prefix.leaf = leaf;
+            prefix.i = i;
+            for (int n = 0; n < half; n++) {
+                prefix.pending.addLast(pending.pollFirst());
+            }
+            leaf = null;
+            estimate >>>= 1;
+            prefix.estimate = estimate;
+            return prefix;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#estimateSize()
+         */
+        @Override
+        public long estimateSize() {
+            return done ? 0 : estimate;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#characteristics()
+         */
+        @Override
+        public int characteristics() {
+            return ORDERED;
+        }
+
+    } // End of class RangeSpliterator
+
+    /**
+     * This abstract class represents any type of node in the tree. Only the first size slots of
+     * the keys array are in use; the array has room for one key over the limit so a node can
+     * overflow before it is split.
+     */
+    private abstract class Node {
+
+        // Keys, sorted in the first size slots
+        double[] keys;
+
+        // Number of keys in use
+        int size;
+
+        // Number of entries and sum of their keys in the subtree of this node
+        int subtreeSize;
+        double subtreeSum;
+
+        /**
+         * Package constructor
+         */
+        Node() {
+            keys = new double[branchingFactor];
+            size = 0;
+        }
+
+        /**
+         * Inserts key and ordinal in the appropriate leaf node and balances the tree if required
+         * by splitting
+         *
+         * @param key
+         * @param ordinal
+         */
+        abstract void insert(double key, int ordinal);
+
+        /**
+         * Gets the first leaf key of the tree
+         *
+         * @return key
+         */
+        abstract double getFirstLeafKey();
+
+        /**
+         * Splits the node if it overflows
+         *
+         * @return InternalNode holding the separator key and the two halves, or null
+         */
+        abstract InternalNode split();
+
+        /**
+         * Removes one entry from the subtree, see BPTree.Node#remove. A child that becomes too
+         * small is fixed by its parent.
+         *
+         * @param key
+         * @param ordinal ordinal of the entry, or -1 to match the value instead
+         * @param value value of the entry when no ordinal is given
+         * @return ordinal of the removed entry, or -1
+         */
+        abstract int remove(double key, int ordinal, Object value);
+
+        /**
+         * Gets the fewest keys the node may hold unless it is the root
+         *
+         * @return minimum size
+         */
+        abstract int minSize();
+
+        /**
+         * Moves the last entry of the left sibling to the front of this node
+         *
+         * @param left sibling on the left, of the same type
+         * @param separator parent key between the two
+         * @return new parent key between the two
+         */
+        abstract double borrowLast(Node left, double separator);
+
+        /**
+         * Moves the first entry of the right sibling to the end of this node
+         *
+         * @param right sibling on the right, of the same type
+         * @param separator parent key between the two
+         * @return new parent key between the two
+         */
+        abstract double borrowFirst(Node right, double separator);
+
+        /**
+         * Appends all entries of the right sibling to this node
+         *
+         * @param right sibling on the right, of the same type
+         * @param separator parent key between the two
+         */
+        abstract void merge(Node right, double separator);
+
+        /**
+         * Gets the leftmost leaf that can hold keys greater than or equal to the given key
+         *
+         * @param key
+         * @return LeafNode
+         */
+        abstract LeafNode findLeaf(double key);
+
+        /**
+         * Sets subtreeSize and subtreeSum again after the node changed, from its keys or from
+         * the totals of its children
+         */
+        abstract void recount();
+
+        /**
+         * Counts the entries of the subtree whose keys lie in a closed range
+         *
+         * @param lowKey
+         * @param highKey not less than lowKey
+         * @return number of entries
+         */
+        abstract int countRange(double lowKey, double highKey);
+
+        /**
+         * Adds up the keys of the subtree that lie in a closed range
+         *
+         * @param lowKey
+         * @param highKey not less than lowKey
+         * @return sum of the keys
+         */
+        abstract double sumRange(double lowKey, double highKey);
+
+        /**
+         * Finds the first position whose key is greater than the given key
+         *
+         * @param key
+         * @return position in [0, size]
+         */
+        int upperBound(double key) {
+            return key == Double.POSITIVE_INFINITY ? size : lowerBound(Math.nextUp(key));
+        }
+
+        /**
+         * Finds the first position whose key is greater than or equal to the given key, with a
+         * scan from the first key in a node of at most BPTree.LINEAR_SEARCH_MAX keys and a binary
+         * search in a larger one
+         *
+         * @param key
+         * @return position in [0, size]
+         */
+        int lowerBound(double key) {
+            if (size <= BPTree.LINEAR_SEARCH_MAX) {
+                int position = 0;
+                while (position < size && keys[position] < key) {
+                    position++;
+                }
+                return position;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return boolean
+         */
+        boolean isOverflow() {
+            return size >= branchingFactor;
+        }
+
+        /**
+         * Gets the position the node splits at, the same one BPTree uses
+         *
+         * @return mid
+         */
+        int splitPosition() {
+            if (branchingFactor % 2 == 0) {
+                return branchingFactor / 2 + 1;
+            } else {
+                return (branchingFactor + 1) / 2;
+            }
+        }
+
+        public String toString() {
+            return Arrays.toString(Arrays.copyOf(keys, size));
+        }
+
+    } // End of abstract class Node
+
+    /**
+     * This class represents an internal node of the tree. Child i holds the keys between key i - 1
+     * and key i, so there is always one child more than there are keys.
+     */
+    private class InternalNode extends Node {
+
+        // Children nodes, the first size + 1 slots are in use
+        Node[] children;
+
+        /**
+         * Package constructor
+         */
+        InternalNode() {
+            super();
+            children = newNodeArray(branchingFactor + 1);
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#getFirstLeafKey()
+         */
+        double getFirstLeafKey() {
+            return children[0].getFirstLeafKey();
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#insert(double, int)
+         */
+        void insert(double key, int ordinal) {
+            int position = lowerBound(key);
+            Node child = children[position];
+            child.insert(key, ordinal);
+            InternalNode newNode = child.split();
+            if (newNode != null) {
+                // the child kept its upper half, the new sibling takes its place on the left
+                System.arraycopy(children, position + 1, children, position + 2, size - position);
+                children[position] = newNode.children[0];
+                children[position + 1] = newNode.children[1];
+                System.arraycopy(keys, position, keys, position + 1, size - position);
+                keys[position] = newNode.keys[0];
+                size++;
+            }
+            recount();
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#split()
+         */
+        InternalNode split() {
+            if (!isOverflow()) {
+                return null;
+            }
+            int mid = splitPosition();
+            InternalNode newNode = new InternalNode();
+            InternalNode sibling = new InternalNode();
+
+            newNode.keys[0] = keys[mid - 1];
+            newNode.size = 1;
+            System.arraycopy(keys, 0, sibling.keys, 0, mid - 1);
+            System.arraycopy(children, 0, sibling.children, 0, mid);
+            sibling.size = mid - 1;
+
+            // this node keeps the keys after the separator
+            System.arraycopy(keys, mid, keys, 0, size - mid);
+            System.arraycopy(children, mid, children, 0, size + 1 - mid);
+            Arrays.fill(children, size + 1 - mid, size + 1, null);
+            size -= mid;
+
+            newNode.children[0] = sibling;
+            newNode.children[1] = this;
+            sibling.recount();
+            recount();
+            newNode.recount();
+            return newNode;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#findLeaf(double)
+         */
+        LeafNode findLeaf(double key) {
+            return children[lowerBound(key)].findLeaf(key);
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#recount()
+         */
+        void recount() {
+            subtreeSize = 0;
+            subtreeSum = 0;
+            for (int child = 0; child <= size; child++) {
+                subtreeSize += children[child].subtreeSize;
+                subtreeSum += children[child].subtreeSum;
+            }
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#countRange(double, double)
+         */
+        int countRange(double lowKey, double highKey) {
+            int first = lowerBound(lowKey);
+            int last = upperBound(highKey);
+            if (first == last) {
+                return children[first].countRange(lowKey, highKey);
+            }
+            // the children in between lie wholly inside the range
+            int count = children[first].countRange(lowKey, highKey)
+                            + children[last].countRange(lowKey, highKey);
+            for (int child = first + 1; child < last; child++) {
+                count += children[child].subtreeSize;
+            }
+            return count;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#sumRange(double, double)
+         */
+        double sumRange(double lowKey, double highKey) {
+            int first = lowerBound(lowKey);
+            int last = upperBound(highKey);
+            if (first == last) {
+                return children[first].sumRange(lowKey, highKey);
+            }
+            double sum = children[first].sumRange(lowKey, highKey)
+                            + children[last].sumRange(lowKey, highKey);
+            for (int child = first + 1; child < last; child++) {
+                sum += children[child].subtreeSum;
+            }
+            return sum;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#remove(double, int, java.lang.Object)
+         */
+        int remove(double key, int ordinal, Object value) {
+            // equal keys may run over every child from the first one that can hold the key
+            for (int position = lowerBound(key); position <= size; position++) {
+                int removed = children[position].remove(key, ordinal, value);
+                if (removed >= 0) {
+                    rebalance(position);
+                    recount();
+                    return removed;
+                }
+                if (position == size || keys[position] != key) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Fixes a child that became too small by borrowing from or merging with a sibling, see
+         * BPTree.InternalNode#rebalance
+         *
+         * @param position position of the child
+         */
+        void rebalance(int position) {
+            Node child = children[position];
+            if (child.size >= child.minSize()) {
+                return;
+            }
+            if (position > 0 && children[position - 1].size > children[position - 1].minSize()) {
+                keys[position - 1] = child.borrowLast(children[position - 1], keys[position - 1]);
+                children[position - 1].recount();
+                child.recount();
+            } else if (position < size
+                            && children[position + 1].size > children[position + 1].minSize()) {
+                keys[position] = child.borrowFirst(children[position + 1], keys[position]);
+                children[position + 1].recount();
+                child.recount();
+            } else if (position > 0) {
+                children[position - 1].merge(child, keys[position - 1]);
+                children[position - 1].recount();
+                removeChild(position - 1);
+            } else {
+                child.merge(children[position + 1], keys[position]);
+                child.recount();
+                removeChild(position);
+            }
+        }
+
+        /**
+         * Drops a key and the child on its right after that child was merged into its left
+         * sibling
+         *
+         * @param position position of the key
+         */
+        void removeChild(int position) {
+            System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+            System.arraycopy(children, position + 2, children, position + 1, size - position - 1);
+            children[size] = null;
+            size--;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#minSize()
+         */
+        int minSize() {
+            return (branchingFactor + 1) / 2 - 1;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#borrowLast(DoubleBPTree.Node, double)
+         */
+        double borrowLast(Node left, double separator) {
+            InternalNode sibling = (InternalNode) left;
+            System.arraycopy(keys, 0, keys, 1, size);
+            System.arraycopy(children, 0, children, 1, size + 1);
+            keys[0] = separator;
+            children[0] = sibling.children[sibling.size];
+            size++;
+
+            sibling.children[sibling.size] = null;
+            sibling.size--;
+            return sibling.keys[sibling.size];
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#borrowFirst(DoubleBPTree.Node, double)
+         */
+        double borrowFirst(Node right, double separator) {
+            InternalNode sibling = (InternalNode) right;
+            keys[size] = separator;
+            children[size + 1] = sibling.children[0];
+            size++;
+
+            double newSeparator = sibling.keys[0];
+            System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.size - 1);
+            System.arraycopy(sibling.children, 1, sibling.children, 0, sibling.size);
+            sibling.children[sibling.size] = null;
+            sibling.size--;
+            return newSeparator;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#merge(DoubleBPTree.Node, double)
+         */
+        void merge(Node right, double separator) {
+            InternalNode sibling = (InternalNode) right;
+            keys[size] = separator;
+            System.arraycopy(sibling.keys, 0, keys, size + 1, sibling.size);
+            System.arraycopy(sibling.children, 0, children, size + 1, sibling.size + 1);
+            size += sibling.size + 1;
+        }
+
+    } // End of class InternalNode
+
+
+    /**
+     * This class represents a leaf node of the tree. The ordinal of the value of key i is kept in
+     * slot i of the ordinals array.
+     */
+    private class LeafNode extends Node {
+
+        // Ordinals of the values
+        int[] ordinals;
+
+        // Reference to the next leaf node
+        LeafNode next;
+
+        // Reference to the previous leaf node
+        LeafNode previous;
+
+        /**
+         * Package constructor
+         */
+        LeafNode() {
+            super();
+            ordinals = new int[branchingFactor];
+            next = null;
+            previous = null;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#getFirstLeafKey()
+         */
+        double getFirstLeafKey() {
+            return keys[0];
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#insert(double, int)
+         */
+        void insert(double key, int ordinal) {
+            // duplicates go in front of the existing equal keys
+            int position = lowerBound(key);
+            System.arraycopy(keys, position, keys, position + 1, size - position);
+            System.arraycopy(ordinals, position, ordinals, position + 1, size - position);
+            keys[position] = key;
+            ordinals[position] = ordinal;
+            size++;
+            recount();
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#split()
+         */
+        InternalNode split() {
+            if (!isOverflow()) {
+                return null;
+            }
+            int mid = splitPosition();
+            InternalNode newNode = new InternalNode();
+            LeafNode sibling = new LeafNode();
+
+            // the first key this node keeps becomes the separator
+            newNode.keys[0] = keys[mid - 1];
+            newNode.size = 1;
+            System.arraycopy(keys, 0, sibling.keys, 0, mid - 1);
+            System.arraycopy(ordinals, 0, sibling.ordinals, 0, mid - 1);
+            sibling.size = mid - 1;
+
+            System.arraycopy(keys, mid - 1, keys, 0, size - mid + 1);
+            System.arraycopy(ordinals, mid - 1, ordinals, 0, size - mid + 1);
+            size -= mid - 1;
+
+            newNode.children[0] = sibling;
+            newNode.children[1] = this;
+            sibling.previous = this.previous;
+            if (this.previous != null) {
+                this.previous.next = sibling;
+            }
+            this.previous = sibling;
+            sibling.next = this;
+            sibling.recount();
+            recount();
+            newNode.recount();
+            return newNode;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#findLeaf(double)
+         */
+        LeafNode findLeaf(double key) {
+            return this;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#recount()
+         */
+        void recount() {
+            subtreeSize = size;
+            subtreeSum = 0;
+            for (int i = 0; i < size; i++) {
+                subtreeSum += keys[i];
+            }
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#countRange(double, double)
+         */
+        int countRange(double lowKey, double highKey) {
+            return Math.max(0, upperBound(highKey) - lowerBound(lowKey));
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#sumRange(double, double)
+         */
+        double sumRange(double lowKey, double highKey) {
+            double sum = 0;
+            for (int i = lowerBound(lowKey), end = upperBound(highKey); i < end; i++) {
+                sum += keys[i];
+            }
+            return sum;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#remove(double, int, java.lang.Object)
+         */
+        int remove(double key, int ordinal, Object value) {
+            for (int position = lowerBound(key); position < size && keys[position] == key;
+                            position++) {
+                int found = ordinals[position];
+                if (ordinal >= 0 ? found == ordinal : Objects.equals(values.get(found), value)) {
+                    System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+                    System.arraycopy(ordinals, position + 1, ordinals, position,
+                                    size - position - 1);
+                    size--;
+                    recount();
+                    return found;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#minSize()
+         */
+        int minSize() {
+            return branchingFactor / 2;
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#borrowLast(DoubleBPTree.Node, double)
+         */
+        double borrowLast(Node left, double separator) {
+            LeafNode sibling = (LeafNode) left;
+            System.arraycopy(keys, 0, keys, 1, size);
+            System.arraycopy(ordinals, 0, ordinals, 1, size);
+            sibling.size--;
+            keys[0] = sibling.keys[sibling.size];
+            ordinals[0] = sibling.ordinals[sibling.size];
+            size++;
+            return keys[0];
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#borrowFirst(DoubleBPTree.Node, double)
+         */
+        double borrowFirst(Node right, double separator) {
+            LeafNode sibling = (LeafNode) right;
+            keys[size] = sibling.keys[0];
+            ordinals[size] = sibling.ordinals[0];
+            size++;
+            sibling.size--;
+            System.arraycopy(sibling.keys, 1, sibling.keys, 0, sibling.size);
+            System.arraycopy(sibling.ordinals, 1, sibling.ordinals, 0, sibling.size);
+            return sibling.keys[0];
+        }
+
+        /**
+         * (non-Javadoc)
+         *
+         * @see DoubleBPTree.Node#merge(DoubleBPTree.Node, double)
+         */
+        void merge(Node right, double separator) {
+            LeafNode sibling = (LeafNode) right;
+            System.arraycopy(sibling.keys, 0, keys, size, sibling.size);
+            System.arraycopy(sibling.ordinals, 0, ordinals, size, sibling.size);
+            size += sibling.size;
+            // the merged leaf keeps its forward link for scans that already stand on it
+            next = sibling.next;
+            if (next != null) {
+                next.previous = this;
+            }
+        }
+
+    } // End of class LeafNode
+
+} // End of class DoubleBPTree
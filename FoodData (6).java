@@ -1,51 +1,153 @@
 package application;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 /**
  * This class represents the backend for managing all the operations associated
  * with FoodItems
  * 
+ * One FoodData can be queried from many threads while items are being added: the queries share
+ * a read lock, and changes take turns through the write lock. A query waits while a change is
+ * in progress, and the lock is fair, so a steady stream of queries cannot keep an add waiting
+ * and a new query waits behind an add that is already queued.
+ * 
  * @author sapan (sapan@cs.wisc.edu)
  */
 public class FoodData implements FoodDataADT<FoodItem> {
 
-	// List of all the food items.
+	// List of all the food items, kept in ascending order by lowercase name. Items with the
+	// same name stay in the order they were added.
 	private List<FoodItem> foodItemList;
-	private List<FoodItem> filteredFoodItem1;
-	private List<FoodItem> filteredByName1;
+
+	// Lowercase name of each item of foodItemList, the key the list is sorted by
+	private List<String> sortedNames;
+
+	// Unmodifiable copy of foodItemList handed out by getAllFoodItems, null after a change until
+	// it is asked for again. Volatile so a reader can take it without the lock.
+	private volatile List<FoodItem> allFoodItems;
 	private boolean file;//use to throw exception
 
-	// Map of nutrients and their corresponding index
-	private HashMap<String, BPTree<Double, FoodItem>> indexes;
+	// All the food items by ordinal, in the order they were added. The indexes refer to the
+	// items by their position in this list, which is never reordered. A removed item leaves a
+	// null behind so the ordinals of the others do not change, until compact() renumbers them.
+	private List<FoodItem> items;
+
+	// Ordinal of every item of items, by identity: an Integer, or an int[] in ascending order
+	// for an item that was added more than once
+	private IdentityHashMap<FoodItem, Object> ordinals;
+
+	// Number of nulls in items
+	private int removed;
+
+	// Id, name and nutrient values of every ordinal by column, removed items included. Loaded
+	// items are flyweights over its rows; an item added on its own is copied into a row.
+	private FoodStore store;
+
+	// Index of each nutrient that has one, by lowercase name. The nutrients of eagerIndexes are
+	// indexed as soon as they are loaded, any other column of the store on its first query.
+	// After a snapshot is loaded an index may be a read-only MappedBPTree over the index file
+	// saved next to it, which becomes a DoubleBPTree on the first change, see writable.
+	private HashMap<String, NutrientIndexADT<FoodItem>> indexes;
+
+	// Lowercase names of the nutrients indexed as soon as they are loaded
+	private final List<String> eagerIndexes;
+
+	// All the food items by lowercase name, the order they are saved in
+	private BPTree<String, FoodItem> byName;
+
+	// Trigrams of every name, for filterByName
+	private NameIndex nameIndex;
+
+	// Sum of every indexed nutrient over all the items, kept as items are added and removed
+	private NutrientTotals totals;
+
+	// Branching factor of every nutrient index and of the name index. At this fan-out a node's
+	// keys span a few cache lines, well below BPTree.LINEAR_SEARCH_MAX, so a node is scanned from
+	// its first key and split with an arraycopy, see BPTreeBenchmark
+	private static final int BRANCHING_FACTOR = 32;
+
+	// Share of nulls in items above which the removed items are compacted away
+	private static final double COMPACT_RATIO = 0.5;
+
+	// How full the nodes are packed when the indexes are bulk built after a load
+	private static final double LOAD_FILL_FACTOR = 0.9;
+
+	// Guards every change to the lists and the indexes, queries read under its read lock
+	private final ReentrantReadWriteLock lock;
 
 	/**
-	 * Public constructor
+	 * Public constructor, the five nutrients of Nutrient are indexed as soon as they are loaded
 	 */
 	public FoodData() {
+		this(Nutrient.names());
+	}
+
+	/**
+	 * Public constructor that picks the nutrients indexed as soon as they are loaded. Any other
+	 * nutrient column of a loaded file is only indexed the first time a query needs it, so data
+	 * with many columns does not pay for indexes that are never queried.
+	 * 
+	 * @param eagerIndexes names of the nutrients to index up front [CASE-INSENSITIVE], empty to
+	 *        index every nutrient on its first query
+	 */
+	public FoodData(Collection<String> eagerIndexes) {
 		//initialize variables
 		foodItemList = new ArrayList<FoodItem>();
-		filteredFoodItem1 = new ArrayList<FoodItem>();
-		indexes = new HashMap<String, BPTree<Double, FoodItem>>();
-		filteredByName1 = new ArrayList<FoodItem>();
+		sortedNames = new ArrayList<String>();
+		items = new ArrayList<FoodItem>();
+		ordinals = new IdentityHashMap<FoodItem, Object>();
+		indexes = new HashMap<String, NutrientIndexADT<FoodItem>>();
+		this.eagerIndexes = new ArrayList<String>();
+		byName = new BPTree<String, FoodItem>(BRANCHING_FACTOR);
+		nameIndex = new NameIndex();
+		lock = new ReentrantReadWriteLock(true);
 		file = false;
+		totals = new NutrientTotals();
+		store = new FoodStore();
 		//construct the hashMap, put BPTree to the hashMap;
-		indexes.put("calories",new BPTree<Double, FoodItem>(3));
-		indexes.put("carbohydrate",new BPTree<Double, FoodItem>(3));
-		indexes.put("fat",new BPTree<Double, FoodItem>(3));
-		indexes.put("fiber",new BPTree<Double, FoodItem>(3));
-		indexes.put("protein",new BPTree<Double, FoodItem>(3));
+		for (String nutrient : eagerIndexes) {
+			String name = nutrient.toLowerCase();
+			this.eagerIndexes.add(name);
+			store.addColumn(name);
+			indexes.put(name, new DoubleBPTree<FoodItem>(BRANCHING_FACTOR, items));
+		}
 	}
 
 	/**
-	 * Loads the data from .csv file and store the nutrients value in BPTree for range Searching
-	 * We construct the same number of BPTree as the number of the nutrients in each Item.
-	 * This class firstly read line by line from input file through scanner. 
+	 * Loads the data from .csv file and store the nutrients value in DoubleBPTree for range Searching
+	 * The file is parsed in parallel by FoodItemLoader, in ranges of whole lines, into a
+	 * FoodStore with a column for every nutrient it finds, and the loaded items are flyweights
+	 * over its rows.
+	 * Once every line is read, each BPTree that exists is rebuilt bottom-up from the items sorted
+	 * by that nutrient, which is much cheaper than inserting the items one by one, and the
+	 * rebuilds run at the same time. Those are the eager nutrients and the ones queried before;
+	 * any other column is indexed on its first query. The file is parsed before taking the write lock, so
+	 * queries only wait for the rebuild.
+	 * A snapshot file written by saveSnapshot is recognized and read in bulk instead, and the
+	 * indexes are opened from the index files saved with it, or restored from the order the
+	 * snapshot stores, without sorting either way.
 	 * 
 	 * @see skeleton.FoodDataADT#loadFoodItems(java.lang.String)
 	 */
@@ -53,167 +155,878 @@ public class FoodData implements FoodDataADT<FoodItem> {
 	public void loadFoodItems(String filePath) {
 	    file = false;//initialize file to check if there is an exception
 		try {
-			File file = new File(filePath);
-			Scanner scnr = new Scanner(file);
-			String receiver = null;//receive line content from scanner
-			int i = 0;//counter
-			String[] fullLine = null;//store the correct information of line
-			String[] lineContent = null;//store the information in line
-			//this loop gets all line information, store them in foodItem, and store foodItem in foodItemList
-			while (scnr.hasNextLine()) {
-				lineContent = null;//clear previous information
-				FoodItem item = null;//clear previous information
-				receiver = scnr.nextLine();//gets line content
-				if (receiver != null) {
-					lineContent = receiver.split(",");//gets information
-				    if(lineContent.length != 12) {//invalid line continue
-				    	continue;
-				    }
-				    if(lineContent.length > 12) {
-				    	continue;
-				    }
-				    if(lineContent.length == 12){//if it is a valid line, record that, to construct the BPTree
-						fullLine = lineContent = receiver.split(",");
-					}
-					item = new FoodItem(lineContent[0], lineContent[1]);//construct new foodItem
-					//add the nutrient information to this item
-					for (i = 2; i < lineContent.length; i = i + 2) {
-						item.addNutrient(lineContent[i].toLowerCase(), Double.parseDouble(lineContent[i + 1]));
-					}
+			if (FoodSnapshot.isSnapshot(filePath)) {
+				FoodSnapshot snapshot = FoodSnapshot.read(filePath);
+				addLoaded(snapshot.getStore(), snapshot, filePath);
+			} else {
+				//read and parse the file on every core
+				addLoaded(new FoodItemLoader(ForkJoinPool.commonPool()).load(filePath), null, null);
+			}
+		} catch (IOException e) {
+			file = true;//set exception mark to true, to pop up window
+			e.printStackTrace();
+		}
+		
+	}
+
+	/**
+	 * Adds the items of a loaded file and rebuilds the indexes, all at once
+	 * 
+	 * @param loaded the items in file order
+	 * @param snapshot the snapshot they come from, or null
+	 * @param filePath path of the snapshot, or null
+	 */
+	private void addLoaded(FoodStore loaded, FoodSnapshot snapshot, String filePath) {
+		lock.writeLock().lock();
+		try {
+			//the stored index order only fits if the snapshot's ordinals are the first ones
+			List<String> stored = snapshot != null && items.isEmpty()
+					? Arrays.asList(snapshot.getNutrients()) : new ArrayList<String>();
+			//the first load takes the loaded columns over, later ones are appended to them
+			int first = items.size();
+			if (first == 0) {
+				store = loaded;
+				for (String nutrient : eagerIndexes) {
+					store.addColumn(nutrient);
 				}
-				foodItemList.add(item);//add foodItem to foodItemList
+			} else {
+				store.addAll(loaded);
+			}
+			for (int ordinal = first; ordinal < store.size(); ordinal++) {
+				FoodItem foodItem = store.item(ordinal);
+				allFoodItems = null;
+				foodItemList.add(foodItem);//add foodItem to foodItemList
+				items.add(foodItem);//the next ordinals
+				addOrdinal(foodItem, ordinal);
+				totals.add(foodItem);
 			}
 			if(foodItemList.size() != 0) {
-			//this for-loop put the foodItem and nutrient value to corresponding BPTree
-			for (FoodItem foodItem : foodItemList) {
-				i = fullLine.length;
-				for (int j = 0; j < (fullLine.length - 2) / 2; ++j) {
-					indexes.get(fullLine[i - 2].toLowerCase())
-							.insert(foodItem.getNutrientValue(fullLine[i - 2].toLowerCase()), foodItem);
-					
-					i = i - 2;
-					if (i < 2) {
-						break;
-					}
+			//rebuild each BPTree from all the foodItem sorted by its nutrient, all at once
+			HashMap<String, ForkJoinTask<NutrientIndexADT<FoodItem>>> builds =
+					new HashMap<String, ForkJoinTask<NutrientIndexADT<FoodItem>>>();
+			for (String nutrient : indexes.keySet()) {
+				int column = stored.indexOf(nutrient);
+				builds.put(nutrient, ForkJoinPool.commonPool().submit(() -> column < 0
+						? buildIndex(nutrient) : restoreIndex(snapshot, filePath, column)));
+			}
+			ForkJoinTask<List<Map.Entry<String, FoodItem>>> nameSort =
+					ForkJoinPool.commonPool().submit(() -> sortNames());
+			ForkJoinTask<NameIndex> trigramBuild =
+					ForkJoinPool.commonPool().submit(() -> new NameIndex(items));
+			for (Map.Entry<String, NutrientIndexADT<FoodItem>> index : indexes.entrySet()) {
+				index.setValue(builds.get(index.getKey()).join());
+			}
+			//the name order feeds both the name index and the sorted foodItemList
+			List<Map.Entry<String, FoodItem>> sorted = nameSort.join();
+			byName = new BPTree<String, FoodItem>(BRANCHING_FACTOR, sorted.iterator(), LOAD_FILL_FACTOR);
+			foodItemList.clear();
+			sortedNames.clear();
+			for (Map.Entry<String, FoodItem> entry : sorted) {
+				sortedNames.add(entry.getKey());
+				foodItemList.add(entry.getValue());
+			}
+			nameIndex = trigramBuild.join();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Opens the index of one nutrient from the index file saved with a snapshot, which costs
+	 * nothing per item and keeps the index off the heap. The file is only used if its header
+	 * carries the id of this snapshot, so an index saved with an older or another snapshot is
+	 * never mapped; otherwise the index is bulk built from the order stored in the snapshot,
+	 * whose items without a value of the nutrient come last and are left out.
+	 * 
+	 * @param snapshot the snapshot the items were loaded from
+	 * @param filePath path of the snapshot
+	 * @param column position of the nutrient in the snapshot
+	 * @return MappedBPTree or DoubleBPTree keyed by the nutrient value
+	 */
+	private NutrientIndexADT<FoodItem> restoreIndex(FoodSnapshot snapshot, String filePath,
+			int column) {
+		int present = snapshot.getStore().count(column);
+		try {
+			MappedBPTree<FoodItem> mapped =
+					new MappedBPTree<FoodItem>(indexPath(filePath, column), items);
+			if (mapped.getSnapshot() == snapshot.getId() && mapped.size() == present) {
+				return mapped;
+			}
+		} catch (IOException e) {
+			//missing or unreadable, fall back to the order in the snapshot
+		}
+		double[] values = snapshot.getValues(column);
+		int[] ordinals = Arrays.copyOf(snapshot.getSortedOrdinals(column), present);
+		double[] keys = new double[ordinals.length];
+		for (int i = 0; i < ordinals.length; i++) {
+			keys[i] = values[ordinals[i]];
+		}
+		return new DoubleBPTree<FoodItem>(BRANCHING_FACTOR, items, keys, ordinals, LOAD_FILL_FACTOR);
+	}
+
+	/**
+	 * Gets the path of the index file saved with a snapshot for one of its nutrients. The file
+	 * is named after the position of the nutrient, so any nutrient name makes a valid path.
+	 * 
+	 * @param filePath path of the snapshot
+	 * @param column position of the nutrient in the snapshot
+	 * @return path of the index file
+	 */
+	private static String indexPath(String filePath, int column) {
+		return filePath + "." + column + ".idx";
+	}
+
+	/**
+	 * Gets the index of a nutrient as a DoubleBPTree that can be changed. An index opened from
+	 * the file of a snapshot is read-only, so on the first change it is copied to the heap from
+	 * the order it stores, without sorting, and replaces the mapped one. Must be called under
+	 * the write lock.
+	 * 
+	 * @param nutrient lowercase name of an indexed nutrient
+	 * @return DoubleBPTree keyed by the nutrient value
+	 */
+	private DoubleBPTree<FoodItem> writable(String nutrient) {
+		NutrientIndexADT<FoodItem> index = indexes.get(nutrient);
+		if (index instanceof DoubleBPTree) {
+			return (DoubleBPTree<FoodItem>) index;
+		}
+		int[] ordinals = index.ordinals();
+		double[] values = store.getColumn(store.column(nutrient));
+		double[] keys = new double[ordinals.length];
+		for (int i = 0; i < ordinals.length; i++) {
+			keys[i] = values[ordinals[i]];
+		}
+		DoubleBPTree<FoodItem> tree =
+				new DoubleBPTree<FoodItem>(BRANCHING_FACTOR, items, keys, ordinals, LOAD_FILL_FACTOR);
+		indexes.put(nutrient, tree);
+		return tree;
+	}
+
+	/**
+	 * Sorts every item by lowercase name, items with the same name in the order they were added
+	 * 
+	 * @return lowercase names and their items in ascending order
+	 */
+	private List<Map.Entry<String, FoodItem>> sortNames() {
+		List<Map.Entry<String, FoodItem>> entries = new ArrayList<Map.Entry<String, FoodItem>>();
+		for (FoodItem item : items) {
+			if (item != null) {//skip removed items
+				entries.add(new AbstractMap.SimpleImmutableEntry<String, FoodItem>(
+						item.getName().toLowerCase(), item));
+			}
+		}
+		entries.sort(Map.Entry.comparingByKey());
+		return entries;
+	}
+
+	/**
+	 * Finds where a name goes in foodItemList with a binary search over the precomputed names
+	 * 
+	 * @param name lowercase name
+	 * @return position after every item with this name or a smaller one
+	 */
+	private int sortedPosition(String name) {
+		int low = 0;
+		int high = sortedNames.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sortedNames.get(mid).compareTo(name) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Bulk builds the index of one nutrient over every item that has a value of it
+	 * 
+	 * @param nutrient lowercase name of a nutrient the store has a column for
+	 * @return DoubleBPTree keyed by the nutrient value
+	 */
+	private DoubleBPTree<FoodItem> buildIndex(String nutrient) {
+		int column = store.column(nutrient);
+		double[] keys = new double[foodItemList.size()];
+		int[] ordinals = new int[foodItemList.size()];
+		double[] values = store.getColumn(column);
+		int count = 0;
+		for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+			//skip removed items and the ones without this nutrient
+			if (items.get(ordinal) != null && store.has(column, ordinal)) {
+				keys[count] = values[ordinal];
+				ordinals[count] = ordinal;
+				count++;
+			}
+		}
+		keys = Arrays.copyOf(keys, count);
+		ordinals = Arrays.copyOf(ordinals, count);
+		DoubleBPTree.sort(keys, ordinals);
+		return new DoubleBPTree<FoodItem>(BRANCHING_FACTOR, items, keys, ordinals, LOAD_FILL_FACTOR);
+	}
+
+	/**
+	 * Runs a read-only query under the read lock, at the same time as other queries but never
+	 * during a change
+	 * 
+	 * @param query the read-only query
+	 * @return the result of the query
+	 */
+	private <T> T read(Supplier<T> query) {
+		lock.readLock().lock();
+		try {
+			return query.get();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the index of every given nutrient that has a column in the store but no index yet,
+	 * under the write lock. Queries call it before they read the indexes, so a column is only
+	 * indexed once something asks for it.
+	 * 
+	 * @param nutrients lowercase names of the nutrients
+	 */
+	private void ensureIndexed(Collection<String> nutrients) {
+		boolean indexed = read(() -> {
+			for (String nutrient : nutrients) {
+				if (!indexes.containsKey(nutrient) && store.column(nutrient) >= 0) {
+					return false;
 				}
 			}
+			return true;
+		});
+		if (indexed) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			for (String nutrient : nutrients) {
+				if (!indexes.containsKey(nutrient) && store.column(nutrient) >= 0) {
+					indexes.put(nutrient, buildIndex(nutrient));
+				}
 			}
-			if(scnr != null) {
-			scnr.close();}
-		} catch (FileNotFoundException e) {
-			file = true;//set exception mark to true, to pop up window
-			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
 		}
-		
+	}
+
+	/**
+	 * Builds the indexes of the nutrients of a query that have none yet, see ensureIndexed
+	 * 
+	 * @param query the rules
+	 * @param others lowercase names of more nutrients the caller reads
+	 */
+	private void ensureIndexed(Query query, String... others) {
+		List<String> nutrients = new ArrayList<String>(Arrays.asList(others));
+		for (int i = 0; i < query.size(); i++) {
+			nutrients.add(query.getNutrient(i));
+		}
+		ensureIndexed(nutrients);
 	}
 
 	/**T
 	 * Gets all the food items that have name containing the substring.
+	 * The names are looked up by their trigrams in the NameIndex, so only the items that share
+	 * every trigram of the substring are checked. The items come back in name order like
+	 * foodItemList, items with the same name in the order they were added: the matches are found
+	 * in ordinal order and then stably sorted by lowercase name.
 	 * 
 	 * @see skeleton.FoodDataADT#filterByName(java.lang.String)
 	 */
 	@Override
 	public List<FoodItem> filterByName(String substring) {
-		if (substring == null || substring == "") {//if it is null, return original foodItemList
-			filteredByName1 = new ArrayList<FoodItem>(foodItemList);
-		} else {
-			filteredByName1.clear();//clear previous list
-			//this for-loop check each item's name, if contains specific substring, add it to list
-			for (FoodItem foodItem : foodItemList) {
-				if (foodItem.getName().toLowerCase().contains(substring.toLowerCase())
-						&& !filteredByName1.contains(foodItem)) {
-					filteredByName1.add(foodItem);
+		return read(() -> {
+			if (substring == null || substring.isEmpty()) {//if it is null, return original foodItemList
+				return new ArrayList<FoodItem>(foodItemList);
+			}
+			List<Map.Entry<String, FoodItem>> matches = new ArrayList<Map.Entry<String, FoodItem>>();
+			Set<FoodItem> added = new HashSet<FoodItem>();
+			//this for-loop adds each item whose name contains specific substring, once
+			for (int ordinal : nameIndex.search(substring)) {
+				FoodItem foodItem = items.get(ordinal);
+				if (added.add(foodItem)) {
+					matches.add(new AbstractMap.SimpleImmutableEntry<String, FoodItem>(
+							foodItem.getName().toLowerCase(), foodItem));
 				}
 			}
+			matches.sort(Map.Entry.comparingByKey());
+			List<FoodItem> filteredByName = new ArrayList<FoodItem>(matches.size());
+			for (Map.Entry<String, FoodItem> match : matches) {
+				filteredByName.add(match.getValue());
+			}
+			return filteredByName;
+		});
+	}
+
+	/**
+	 * Gets the first food items in name order whose name starts with the prefix. The name index
+	 * already keeps the lowercase names sorted, so the prefix is one range of it: the scan starts
+	 * at the prefix and stops after limit items, whatever the size of the catalog.
+	 * 
+	 * @see skeleton.FoodDataADT#prefixSearch(java.lang.String, int)
+	 */
+	@Override
+	public List<FoodItem> prefixSearch(String prefix, int limit) {
+		String low = prefix == null ? "" : prefix.toLowerCase();
+		//every name with the prefix sorts before the prefix with its last char increased
+		String high = null;
+		for (int end = low.length() - 1; end >= 0 && high == null; end--) {
+			if (low.charAt(end) != Character.MAX_VALUE) {
+				high = low.substring(0, end) + (char) (low.charAt(end) + 1);
+			}
 		}
-		return filteredByName1;
+		String upper = high;
+		return read(() -> byName.rangeSearch(low, upper, "[)", limit));
 	}
 
 	/**
 	 * Gets all the food items that fulfill ALL the provided rules,stored them in a list to return.
+	 * The rules are parsed into a Query, so a malformed rule matches nothing.
 	 * @see skeleton.FoodDataADT#filterByNutrients(java.util.List)
 	 */
 	@Override
 	public List<FoodItem> filterByNutrients(List<String> rules) {
-		List<FoodItem> filteredNutrient = new ArrayList<FoodItem>();//create list to stored specific foodItem
-		filteredNutrient.addAll(foodItemList);
-		if (rules.size() == 0 || rules == null) {//if rules are null, return original list
-			filteredFoodItem1 = new ArrayList<FoodItem>(foodItemList);
-			return filteredFoodItem1;
-		} else {
-			//initialize variable
-			String rule = null;
-			int length = rules.size();
-			int i = 0;			
-			List<FoodItem> getter = new ArrayList<FoodItem>();//stored the returned list from rangeSearch
-			//this for-loop iterate by the size of rules.
-			for (i = 0; i < length; ++i) {
-				rule = rules.get(i);
-				String[] receiver = rule.split(" ");//split rule
-				//gets rule information
-				String name = receiver[0].toLowerCase();
-				String comparator = receiver[1];
-				String value = receiver[2];
-				//use BPTree to gets the correct foodItem
-				getter = indexes.get(name).rangeSearch(Double.parseDouble(value), comparator);
-				filteredNutrient.retainAll(getter);       
-			}
-			filteredFoodItem1 = filteredNutrient;
+		Query query;
+		try {
+			query = Query.parse(rules);
+		} catch (IllegalArgumentException e) {
+			return new ArrayList<FoodItem>();
+		}
+		return filterByQuery(query);
+	}
+
+	/**
+	 * Gets all the food items that fulfill ALL the rules of the query.
+	 * @see skeleton.FoodDataADT#filterByQuery(application.Query)
+	 */
+	@Override
+	public List<FoodItem> filterByQuery(Query query) {
+		ensureIndexed(query);
+		return read(() -> {
+			if (query.isEmpty()) {//if there are no rules, return original list
+				return new ArrayList<FoodItem>(foodItemList);
+			}
+			List<FoodItem> filteredNutrient = new ArrayList<FoodItem>();
+			scan(query, ordinal -> filteredNutrient.add(items.get(ordinal)));
 			return filteredNutrient;
+		});
+	}
+
+	/**
+	 * Counts the food items that fulfill ALL the provided rules without building a list. Rules
+	 * on a single nutrient are counted from its index in O(log N), from the subtree counts of a
+	 * DoubleBPTree or the leaf positions of a MappedBPTree. Rules on several nutrients visit the
+	 * candidates of the most selective one, so they cost O(log N + candidates).
+	 * @see skeleton.FoodDataADT#countByNutrients(java.util.List)
+	 */
+	@Override
+	public int countByNutrients(List<String> rules) {
+		Query query;
+		try {
+			query = Query.parse(rules);
+		} catch (IllegalArgumentException e) {
+			return 0;
 		}
+		ensureIndexed(query);
+		return read(() -> {
+			if (query.isEmpty()) {
+				return foodItemList.size();
+			}
+			if (query.size() == 1) {
+				NutrientIndexADT<FoodItem> index = indexes.get(query.getNutrient(0));
+				return index == null ? 0 : index.count(query.getLowerBound(0), query.getUpperBound(0));
+			}
+			int[] count = new int[1];
+			scan(query, ordinal -> count[0]++);
+			return count[0];
+		});
+	}
+
+	/**
+	 * Gets the count, sum, smallest, largest and average value of a nutrient over the food items
+	 * that fulfill ALL the provided rules. When the rules constrain no other nutrient, the answer
+	 * comes from the subtree sums of the index of that nutrient in O(log N), whether the index is
+	 * on the heap or mapped; otherwise the candidates of the most selective rule are scanned and
+	 * the matches added up, in O(log N + candidates).
+	 * @see skeleton.FoodDataADT#aggregate(java.lang.String, java.util.List)
+	 */
+	@Override
+	public RangeStatistics aggregate(String nutrient, List<String> rules) {
+		String name = nutrient == null ? null : nutrient.toLowerCase();
+		Query query;
+		try {
+			query = Query.parse(rules);
+		} catch (IllegalArgumentException e) {
+			return new RangeStatistics(0, 0, Double.NaN, Double.NaN);
+		}
+		ensureIndexed(query, name);
+		return read(() -> {
+			NutrientIndexADT<FoodItem> index = indexes.get(name);
+			if (index == null) {
+				return new RangeStatistics(0, 0, Double.NaN, Double.NaN);//no foodItem has this nutrient
+			}
+			if (query.isEmpty()) {
+				return index.statistics(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+			}
+			if (query.size() == 1 && query.getNutrient(0).equals(name)) {
+				return index.statistics(query.getLowerBound(0), query.getUpperBound(0));
+			}
+			DoubleSummaryStatistics summary = new DoubleSummaryStatistics();
+			int column = store.column(name);
+			double[] values = store.getColumn(column);
+			scan(query, ordinal -> {
+				if (store.has(column, ordinal)) {//items without the nutrient are not counted
+					summary.accept(values[ordinal]);
+				}
+			});
+			if (summary.getCount() == 0) {
+				return new RangeStatistics(0, 0, Double.NaN, Double.NaN);
+			}
+			return new RangeStatistics((int) summary.getCount(), summary.getSum(), summary.getMin(),
+					summary.getMax());
+		});
+	}
+
+	/**
+	 * Passes the ordinal of every food item that fulfills ALL the rules of a query with at least
+	 * one rule to an action, in ordinal order. The rules of one nutrient are already folded into
+	 * a single closed range, so every index is scanned at most once. Only the index whose range
+	 * holds the fewest items is scanned; the ranges of the other nutrients are then checked on
+	 * each of its matches, straight from the columns of the store; an item without a value of
+	 * one of the nutrients does not match. Must be called under the lock.
+	 * 
+	 * @param query the rules, not empty
+	 * @param action called on each match
+	 */
+	private void scan(Query query, IntConsumer action) {
+		//pick the nutrient whose range matches the fewest foodItem
+		int scanned = -1;
+		double fewest = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < query.size(); i++) {
+			NutrientIndexADT<FoodItem> index = indexes.get(query.getNutrient(i));
+			if (index == null) {
+				return;//no foodItem has this nutrient
+			}
+			double fraction = index.estimateFraction(query.getLowerBound(i), query.getUpperBound(i));
+			if (fraction < fewest) {
+				fewest = fraction;
+				scanned = i;
+			}
+		}
+		//use BPTree to gets the ordinals of the candidates, in ordinal order
+		BitSet candidates = new BitSet(items.size());
+		indexes.get(query.getNutrient(scanned)).rangeOrdinals(query.getLowerBound(scanned),
+				query.getUpperBound(scanned), candidates);
+		//check the other rules on each candidate
+		double[][] columns = new double[query.size()][];
+		BitSet[] present = new BitSet[query.size()];
+		for (int i = 0; i < query.size(); i++) {
+			int column = store.column(query.getNutrient(i));
+			columns[i] = store.getColumn(column);
+			present[i] = store.getPresent(column);
+		}
+		for (int ordinal = candidates.nextSetBit(0); ordinal >= 0; ordinal = candidates.nextSetBit(ordinal + 1)) {
+			if (query.test(columns, present, ordinal, scanned)) {
+				action.accept(ordinal);
+			}
+		}
+	}
+
+	/**
+	 * Gets the k foodItem with the lowest or highest value of a nutrient. The index of the
+	 * nutrient is walked from one end of its leaf chain, so only about k entries are read,
+	 * whatever the size of the catalog.
+	 * 
+	 * @see skeleton.FoodDataADT#topK(java.lang.String, int, skeleton.FoodDataADT.Order)
+	 */
+	@Override
+	public List<FoodItem> topK(String nutrient, int k, Order order) {
+		String name = nutrient == null ? null : nutrient.toLowerCase();
+		ensureIndexed(Collections.singletonList(name));
+		return read(() -> {
+			NutrientIndexADT<FoodItem> index = indexes.get(name);
+			if (index == null || k <= 0) {
+				return new ArrayList<FoodItem>();
+			}
+			return order == Order.DESCENDING ? index.descending(null, k) : index.ascending(null, k);
+		});
 	}
 
 	/*
-	 * This method add foodItem to foodItemList, and to the BPTree.
+	 * This method add foodItem to foodItemList at its place in name order, and to the BPTree.
 	 * 
 	 * @see skeleton.FoodDataADT#addFoodItem(skeleton.FoodItem)
 	 */
 	@Override
 	public void addFoodItem(FoodItem foodItem) {
-		foodItemList.add(foodItem);
-		indexes.get("calories").insert(foodItem.getNutrientValue("calories"),foodItem);
-		indexes.get("carbohydrate").insert(foodItem.getNutrientValue("carbohydrate"),foodItem);
-		indexes.get("fat").insert(foodItem.getNutrientValue("fat"),foodItem);
-		indexes.get("protein").insert(foodItem.getNutrientValue("protein"),foodItem);
-		indexes.get("fiber").insert(foodItem.getNutrientValue("fiber"),foodItem);
+		lock.writeLock().lock();
+		try {
+			String name = foodItem.getName().toLowerCase();
+			int position = sortedPosition(name);
+			sortedNames.add(position, name);
+			foodItemList.add(position, foodItem);
+			allFoodItems = null;
+			int ordinal = items.size();
+			items.add(foodItem);
+			addOrdinal(foodItem, ordinal);
+			store.add(foodItem);//the row of the new ordinal, a copy of its values
+			for (String nutrient : indexes.keySet()) {
+				int column = store.column(nutrient);
+				if (store.has(column, ordinal)) {//an item without the nutrient is not indexed
+					writable(nutrient).insertOrdinal(store.getValue(column, ordinal), ordinal);
+				}
+			}
+			byName.insert(name, foodItem);
+			nameIndex.add(ordinal, foodItem.getName());
+			totals.add(foodItem);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * This method removes one foodItem from foodItemList, and from every BPTree. If the same
+	 * item was added several times, only its last addition is removed. The item is found by
+	 * identity in the ordinal map and by binary search in foodItemList, so nothing is scanned;
+	 * once removed items make up more than COMPACT_RATIO of the ordinals they are compacted away.
+	 * 
+	 * @see skeleton.FoodDataADT#removeFoodItem(skeleton.FoodItem)
+	 */
+	@Override
+	public boolean removeFoodItem(FoodItem foodItem) {
+		lock.writeLock().lock();
+		try {
+			int ordinal = removeLastOrdinal(foodItem);
+			if (ordinal < 0) {
+				return false;
+			}
+			items.set(ordinal, null);
+			removed++;
+			//only the items with the same name need to be looked at, the last one first
+			String name = foodItem.getName().toLowerCase();
+			for (int position = sortedPosition(name) - 1;
+					position >= 0 && sortedNames.get(position).equals(name); position--) {
+				if (foodItemList.get(position) == foodItem) {
+					sortedNames.remove(position);
+					foodItemList.remove(position);
+					allFoodItems = null;
+					break;
+				}
+			}
+			for (String nutrient : indexes.keySet()) {
+				int column = store.column(nutrient);
+				if (store.has(column, ordinal)) {
+					writable(nutrient).removeOrdinal(store.getValue(column, ordinal), ordinal);
+				}
+			}
+			byName.remove(name, foodItem);
+			nameIndex.remove(ordinal);
+			totals.remove(foodItem);
+			if (foodItem.isRowOf(store, ordinal)) {
+				int[] others = ordinalsOf(ordinals.get(foodItem));
+				if (others.length > 0) {
+					foodItem.rebind(store, others[0]);//still added, read a row that stays
+				} else {
+					foodItem.detach();//a removed item does not keep the store reachable
+				}
+			}
+			if (removed > COMPACT_RATIO * items.size()) {
+				compact();
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops the removed items from items and from the store and numbers the remaining ones from
+	 * 0, then rebuilds every index over the new ordinals. Must be called under the write lock.
+	 * The flyweights of the old store are rebound to their rows in the new one, so their identity
+	 * and values do not change and nothing keeps the old store reachable.
+	 */
+	private void compact() {
+		int[] live = new int[items.size() - removed];
+		int count = 0;
+		for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+			if (items.get(ordinal) != null) {
+				live[count++] = ordinal;
+			}
+		}
+		FoodStore compacted = store.select(live);
+		List<FoodItem> remaining = new ArrayList<FoodItem>(live.length);
+		for (int ordinal = 0; ordinal < live.length; ordinal++) {
+			FoodItem foodItem = items.get(live[ordinal]);
+			if (foodItem.isRowOf(store, live[ordinal])) {
+				foodItem.rebind(compacted, ordinal);
+			}
+			remaining.add(foodItem);
+		}
+		store = compacted;
+		//the indexes share items, so the list itself is refilled
+		items.clear();
+		items.addAll(remaining);
+		removed = 0;
+		ordinals.clear();
+		for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+			addOrdinal(items.get(ordinal), ordinal);
+		}
+		for (Map.Entry<String, NutrientIndexADT<FoodItem>> index : indexes.entrySet()) {
+			index.setValue(buildIndex(index.getKey()));
+		}
+		nameIndex = new NameIndex(items);
+	}
+
+	/**
+	 * Records one more ordinal of an item, greater than the ones it has
+	 * 
+	 * @param foodItem the item
+	 * @param ordinal its new ordinal
+	 */
+	private void addOrdinal(FoodItem foodItem, int ordinal) {
+		Object known = ordinals.put(foodItem, ordinal);
+		if (known != null) {//added before, keep every ordinal
+			int[] all = ordinalsOf(known);
+			all = Arrays.copyOf(all, all.length + 1);
+			all[all.length - 1] = ordinal;
+			ordinals.put(foodItem, all);
+		}
+	}
+
+	/**
+	 * Forgets the last ordinal of an item
+	 * 
+	 * @param foodItem the item
+	 * @return the ordinal, or -1 if the item has none
+	 */
+	private int removeLastOrdinal(FoodItem foodItem) {
+		Object known = ordinals.remove(foodItem);
+		if (known == null) {
+			return -1;
+		}
+		int[] all = ordinalsOf(known);
+		if (all.length == 2) {
+			ordinals.put(foodItem, all[0]);
+		} else if (all.length > 2) {
+			ordinals.put(foodItem, Arrays.copyOf(all, all.length - 1));
+		}
+		return all[all.length - 1];
+	}
+
+	/**
+	 * Gets the ordinals of an entry of the ordinal map
+	 * 
+	 * @param known an Integer or an int[], null for an item that has none
+	 * @return ordinals in ascending order
+	 */
+	private static int[] ordinalsOf(Object known) {
+		if (known == null) {
+			return new int[0];
+		}
+		return known instanceof Integer ? new int[] {(Integer) known} : (int[]) known;
+	}
+
+	/**
+	 * Changes one nutrient of a foodItem that was added before and moves it in the index of
+	 * that nutrient, without rebuilding anything. The item is found by identity in the ordinal
+	 * map; an item that was never added is left alone, and neither the store nor the item is
+	 * changed.
+	 * 
+	 * @param foodItem the food item to change
+	 * @param nutrient name of the nutrient
+	 * @param value new value of the nutrient
+	 * @return true if the item was found and changed
+	 * @throws IllegalArgumentException if the value is NaN or infinite, nothing is changed then
+	 */
+	public boolean updateNutrient(FoodItem foodItem, String nutrient, double value) {
+		String name = nutrient.toLowerCase();
+		FoodItem.checkValue(name, value);//before any index is touched
+		lock.writeLock().lock();
+		try {
+			int[] known = ordinalsOf(ordinals.get(foodItem));
+			if (known.length == 0) {
+				return false;//not added, so there is no row to change
+			}
+			Nutrient key = Nutrient.of(name);
+			DoubleBPTree<FoodItem> index = indexes.containsKey(name) ? writable(name) : null;
+			int column = store.addColumn(name);//a new nutrient becomes a column
+			//the same item may have been added more than once
+			boolean flyweight = false;
+			for (int ordinal : known) {
+				flyweight |= foodItem.isRowOf(store, ordinal);
+				double oldValue = store.getValue(column, ordinal);//0 if the item had none
+				if (index != null && store.has(column, ordinal)) {
+					index.updateOrdinal(oldValue, value, ordinal);
+				} else if (index != null) {//the item gets the nutrient, so it is indexed now
+					index.insertOrdinal(value, ordinal);
+				}
+				if (key != null) {
+					totals.update(key, oldValue, value);
+				}
+				store.setValue(column, ordinal, value);
+			}
+			if (!flyweight) {//a flyweight of the store already reads the new value
+				foodItem.addNutrient(name, value);
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the total of a nutrient over all the foodItem from the running totals, without
+	 * looking at any item. A nutrient outside Nutrient is added up from the subtree sums of its
+	 * index instead, which is built on first use.
+	 * 
+	 * @see skeleton.FoodDataADT#getTotal(java.lang.String)
+	 */
+	@Override
+	public double getTotal(String nutrient) {
+		String name = nutrient == null ? null : nutrient.toLowerCase();
+		Nutrient key = Nutrient.of(name);
+		if (key != null) {
+			return getTotal(key);
+		}
+		ensureIndexed(Collections.singletonList(name));
+		return read(() -> {
+			NutrientIndexADT<FoodItem> index = indexes.get(name);
+			return index == null ? 0 : index.sum(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+		});
+	}
+
+	/**
+	 * Gets the total of a nutrient over all the foodItem from the running totals.
+	 * 
+	 * @see skeleton.FoodDataADT#getTotal(application.Nutrient)
+	 */
+	@Override
+	public double getTotal(Nutrient nutrient) {
+		return read(() -> totals.getTotal(nutrient));
 	}
 
 	/*
-	 * This method gets all foodItem from sorted list
+	 * This method gets all foodItem in name order. foodItemList is kept sorted as items are
+	 * added and removed; the first call after a change copies it once under the read lock, and
+	 * every later call returns that same unmodifiable copy without locking, until the next
+	 * change. The copy never changes, so it can be iterated while other threads add items.
 	 * 
 	 * @see skeleton.FoodDataADT#getAllFoodItems()
 	 */
 	@Override
 	public List<FoodItem> getAllFoodItems() {
-		foodItemList.sort((h1, h2) -> h1.getName().toLowerCase().compareTo(h2.getName().toLowerCase()));//sort list
-		return foodItemList;
+		List<FoodItem> all = allFoodItems;
+		if (all != null) {
+			return all;
+		}
+		//writers wait while the copy is made, so it is not cleared before it is published
+		return read(() -> {
+			if (allFoodItems == null) {
+				allFoodItems = Collections.unmodifiableList(new ArrayList<FoodItem>(foodItemList));
+			}
+			return allFoodItems;
+		});
 	}
 /**
- * This method save the sorted foodItemList to a target destination.
+ * This method save the foodItems in name order to a target destination. A filename ending
+ * in .gz is written gzip compressed.
  */
 	@Override
 	public void saveFoodItems(String filename) {
+		saveFoodItems(filename, filename.endsWith(".gz") ? FoodItemWriter.Compression.GZIP
+				: FoodItemWriter.Compression.NONE);
+	}
+
+	/**
+	 * This method streams the foodItems in name order straight from the name index to a
+	 * target destination, through one large buffer and without building a string per item.
+	 * The name index is read lazily under the read lock, so no list of the items is built;
+	 * changes wait until the file is written.
+	 * 
+	 * @param filename name of the file where the data needs to be saved
+	 * @param compression how the file is encoded
+	 */
+	public void saveFoodItems(String filename, FoodItemWriter.Compression compression) {
 	    file = false;
-		foodItemList.sort((h1, h2) -> h1.getName().toLowerCase().compareTo(h2.getName().toLowerCase()));//sort list
+		lock.readLock().lock();
+		try (FoodItemWriter writer = new FoodItemWriter(filename, compression)) {
+			Iterator<FoodItem> sorted = byName.iterator(null, null, "[]");
+			while (sorted.hasNext()) {
+				writer.write(sorted.next());
+			}
+		} catch (IOException e) {
+			file = true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+/**
+ * This method saves every foodItem and the order of each index to a binary snapshot, which
+ * loadFoodItems reads back without parsing any text. A snapshot stores the values of a nutrient
+ * along with its index, so the columns not queried yet are indexed first. Each index is also
+ * saved as a MappedBPTree file next to the snapshot, filename.i.idx for the i-th nutrient, which
+ * loadFoodItems opens instead of building the index on the heap.
+ * 
+ * @param filename name of the snapshot file
+ */
+	public void saveSnapshot(String filename) {
+		file = false;
+		ensureIndexed(read(() -> new ArrayList<String>(store.getNutrients())));
+		lock.readLock().lock();
 		try {
-			//use fileWriter and printWriter to construct output file
-			FileWriter fileWriter = new FileWriter(filename);
-			PrintWriter printWriter = new PrintWriter(filename);
-			//this for loop save foodItemList to a new file
-			for (FoodItem foodItem : foodItemList) {
-				printWriter.println(foodItem.getID() + "," + foodItem.getName() + "," + "calories" + ","
-						+ foodItem.getNutrientValue("calories") + "," + "fat" + "," + foodItem.getNutrientValue("fat")
-						+ "," + "carbohydrate" + "," + foodItem.getNutrientValue("carbohydrate") + "," + "fiber" + ","
-						+ foodItem.getNutrientValue("fiber") + "," + "protein" + ","
-						+ foodItem.getNutrientValue("protein"));
-			}
-			printWriter.flush();
-			fileWriter.flush();
+			//the snapshot numbers the remaining items from 0
+			int[] remap = new int[items.size()];
+			List<FoodItem> remaining = new ArrayList<FoodItem>(foodItemList.size());
+			for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+				remap[ordinal] = items.get(ordinal) == null ? -1 : remaining.size();
+				if (items.get(ordinal) != null) {
+					remaining.add(items.get(ordinal));
+				}
+			}
+			String[] nutrients = indexes.keySet().toArray(new String[0]);
+			int[][] indexed = new int[nutrients.length][];
+			int[][] sortedOrdinals = new int[nutrients.length][];
+			for (int i = 0; i < nutrients.length; i++) {
+				int column = store.column(nutrients[i]);
+				indexed[i] = indexes.get(nutrients[i]).ordinals();
+				//the items without the nutrient follow the indexed ones
+				int[] sorted = Arrays.copyOf(indexed[i], remaining.size());
+				int next = indexed[i].length;
+				for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+					if (remap[ordinal] >= 0 && !store.has(column, ordinal)) {
+						sorted[next++] = ordinal;
+					}
+				}
+				for (int j = 0; j < sorted.length; j++) {
+					sorted[j] = remap[sorted[j]];
+				}
+				sortedOrdinals[i] = sorted;
+			}
+			long id = FoodSnapshot.write(filename, remaining, nutrients, sortedOrdinals);
+			for (int i = 0; i < nutrients.length; i++) {
+				int column = store.column(nutrients[i]);
+				double[] keys = new double[indexed[i].length];
+				for (int j = 0; j < keys.length; j++) {
+					keys[j] = store.getValue(column, indexed[i][j]);
+				}
+				//written aside and moved over, since an index may still map the old file
+				String indexFile = indexPath(filename, i);
+				MappedBPTree.write(indexFile + ".tmp", keys,
+						Arrays.copyOf(sortedOrdinals[i], keys.length),
+						MappedBPTree.DEFAULT_PAGE_SIZE, id);
+				Files.move(Paths.get(indexFile + ".tmp"), Paths.get(indexFile),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
 		} catch (IOException e) {
 			file = true;
+		} finally {
+			lock.readLock().unlock();
 		}
-
 	}
+
 /**
  * getter for exception marker
  * @return
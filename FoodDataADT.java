@@ -8,6 +8,13 @@ import java.util.List;
  */
 public interface FoodDataADT<F extends FoodItem> {
     
+    /**
+     * Order of the food items returned by topK
+     */
+    public enum Order {
+        ASCENDING, DESCENDING
+    }
+    
     /**
      * Loads the data in the .csv file
      * 
@@ -23,8 +30,10 @@ public interface FoodDataADT<F extends FoodItem> {
      *  2. All IDs are unique.
      *  3. Names can be duplicate.
      *  4. All columns are strictly alphanumeric (a-zA-Z0-9_).
-     *  5. All food items will strictly contain 5 nutrients in the given order:    
-     *     calories,fat,carbohydrate,fiber,protein
+     *  5. A food item has one or more nutrients, in any order. The
+     *     usual ones are calories,fat,carbohydrate,fiber,protein;
+     *     others, such as sodium or sugar, are kept as well and can be
+     *     queried like them. A missing nutrient reads as 0.
      *  6. Nutrients are CASE-INSENSITIVE. 
      * 
      * @param filePath path of the food item data file 
@@ -55,6 +64,17 @@ public interface FoodDataADT<F extends FoodItem> {
     public List<F> filterByName(String substring);
     
     
+    /**
+     * Gets the first food items, in ascending order by name, whose name starts with the prefix.
+     * Matching is CASE-INSENSITIVE, as in filterByName.
+     * 
+     * @param prefix start of the name, empty for any name
+     * @param limit most food items to return
+     * @return list of at most limit food items; if no food item matched, return empty list
+     */
+    public List<F> prefixSearch(String prefix, int limit);
+    
+    
     /**
      * Gets all the food items that fulfill ALL the provided rules
      *
@@ -79,6 +99,66 @@ public interface FoodDataADT<F extends FoodItem> {
     public List<F> filterByNutrients(List<String> rules);
     
     
+    /**
+     * Gets all the food items that fulfill ALL the rules of a query, see
+     * filterByNutrients(List). The query is parsed once and can be run any number of times.
+     *
+     * @param query the rules
+     * @return list of filtered food items; if no food item matched, return empty list
+     */
+    public List<F> filterByQuery(Query query);
+    
+    
+    /**
+     * Counts the food items that would be returned by
+     * filterByNutrients(rules), without building the list.
+     * 
+     * Example:
+     *     countByNutrients(["fat <= 10", "fat >= 2"]) counts the
+     *     food items with between 2 and 10 fat
+     * 
+     * @param rules list of rules, in the format of filterByNutrients
+     * @return number of matching food items; if a rule is malformed
+     * or names an unknown nutrient, return 0
+     */
+    public int countByNutrients(List<String> rules);
+    
+    
+    /**
+     * Gets the count, sum, smallest, largest and average value of a
+     * nutrient over the food items that fulfill ALL the rules.
+     * 
+     * Example:
+     *     aggregate("calories", ["protein >= 20"]).getAverage() is the
+     *     average calories of the food items with at least 20 protein
+     * 
+     * @param nutrient name of the nutrient to add up [CASE-INSENSITIVE]
+     * @param rules list of rules, in the format of filterByNutrients;
+     *        an empty list selects every food item
+     * @return statistics of the nutrient; if no food item matched,
+     * the nutrient is unknown or a rule is malformed, statistics with
+     * a count of 0
+     */
+    public RangeStatistics aggregate(String nutrient, List<String> rules);
+    
+    
+    /**
+     * Gets the k food items with the lowest or the highest value of a nutrient.
+     * 
+     * Example:
+     *     topK("protein", 20, Order.DESCENDING) returns the 20 food
+     *     items with the most protein, the most first
+     * 
+     * @param nutrient name of the nutrient [CASE-INSENSITIVE]
+     * @param k most food items to return
+     * @param order ASCENDING for the lowest values first,
+     *        DESCENDING for the highest values first
+     * @return list of at most k food items; if the nutrient is
+     * unknown or k is not positive, return empty list
+     */
+    public List<F> topK(String nutrient, int k, Order order);
+    
+    
     /**
      * Adds a food item to the loaded data.
      * @param foodItem the food item instance to be added
@@ -87,12 +167,48 @@ public interface FoodDataADT<F extends FoodItem> {
 
     
     /**
-     * Gets the list of all food items.
-     * @return list of FoodItem
+     * Removes a food item from the loaded data.
+     * @param foodItem the food item instance to be removed
+     * @return true if the food item was found and removed
+     */
+    public boolean removeFoodItem(FoodItem foodItem);
+
+    
+    /**
+     * Gets the list of all food items, in ascending order of their lowercase name.
+     * The list is an unmodifiable snapshot: it does not follow later adds and
+     * removals, so it can be iterated while another thread changes the data. Call
+     * again to see the changes.
+     * @return unmodifiable snapshot list of FoodItem
      */
     public List<FoodItem> getAllFoodItems();
     
     
+    /**
+     * Gets the sum of a nutrient over all the food items, kept
+     * up to date as food items are added and removed.
+     * 
+     * Example:
+     *     getTotal("calories") on a meal is the calories of the
+     *     whole meal
+     * 
+     * @param nutrient name of the nutrient [CASE-INSENSITIVE]
+     * @return total of the nutrient; 0 if there are no food items
+     * or the nutrient is unknown
+     */
+    public double getTotal(String nutrient);
+    
+    
+    /**
+     * Gets the sum of a nutrient over all the food items,
+     * see getTotal(String).
+     * 
+     * @param nutrient the nutrient
+     * @return total of the nutrient; 0 if there are no food items
+     */
+    public double getTotal(Nutrient nutrient);
+    
+    
     /**
      * Save the list of food items in ascending order by name
      * 
@@ -0,0 +1,699 @@
+package application;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks of FoodData and the classes behind it. Like BPTreeBenchmark it is a plain main program
+ * rather than a JUnit suite, so it runs without any extra dependency. Every check prints its
+ * name, and the program exits with status 1 once a check failed.
+ *
+ * Usage: java application.FoodDataTest
+ */
+public class FoodDataTest {
+
+    // Number of failed checks
+    private static int failures;
+
+    /**
+     * Records one check
+     *
+     * @param name what was checked
+     * @param passed whether it held
+     */
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "ok     " : "FAILED ") + name);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * Writes lines to a temporary file
+     *
+     * @param lines content of the file
+     * @return the file, deleted on exit
+     * @throws IOException
+     */
+    private static File write(String... lines) throws IOException {
+        File file = File.createTempFile("fooddata", ".csv");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            for (String line : lines) {
+                writer.println(line);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A value that is not a finite number makes its line malformed, so the line is skipped and
+     * the rest of the file is still loaded and indexed
+     *
+     * @throws IOException
+     */
+    private static void loadSkipsNonFiniteValues() throws IOException {
+        File file = write("1,apple,calories,52,fat,0.2",
+                        "2,broken,calories,NaN,fat,1",
+                        "3,endless,calories,Infinity,fat,1",
+                        "4,huge,calories,1e999,fat,1",
+                        "5,pear,calories,57,fat,0.1");
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(file.getPath());
+        List<FoodItem> all = foodData.getAllFoodItems();
+        check("load skips NaN and infinite values", !foodData.fileNotFound() && all.size() == 2
+                        && all.get(0).getName().equals("apple")
+                        && all.get(1).getName().equals("pear"));
+        check("load indexes the valid lines",
+                        foodData.filterByNutrients(Arrays.asList("calories >= 0")).size() == 2);
+    }
+
+    /**
+     * Rules are parsed case-insensitively, the rules of one nutrient fold into one closed range,
+     * and a malformed rule is rejected by Query.parse and matches nothing in FoodData
+     *
+     * @throws IOException
+     */
+    private static void rulesAreParsedAndFolded() throws IOException {
+        Query query = Query.parse(Arrays.asList("calories >= 50", "  Calories   <=  200 ",
+                        "FAT == 2.5"));
+        check("rules are parsed", query.size() == 2 && query.getNutrient(0).equals("calories")
+                        && query.getLowerBound(0) == 50 && query.getUpperBound(0) == 200
+                        && query.getNutrient(1).equals("fat") && query.getLowerBound(1) == 2.5
+                        && query.getUpperBound(1) == 2.5);
+        Query folded = Query.parse(Arrays.asList("fat >= 2", "fat <= 9", "fat >= 5", "fat <= 7"));
+        check("rules on one nutrient fold into the tightest range", folded.size() == 1
+                        && folded.getLowerBound(0) == 5 && folded.getUpperBound(0) == 7);
+        Query open = Query.parse(Arrays.asList("fiber >= 1"));
+        check("a range without an upper rule is open above", open.getLowerBound(0) == 1
+                        && open.getUpperBound(0) == Double.POSITIVE_INFINITY);
+        check("no rules make an empty query",
+                        Query.parse(null).isEmpty() && Query.parse(new ArrayList<String>()).isEmpty());
+
+        String[] malformed = {"fat > 2", "fat >= two", "fat >=", "fat >= 2 g", "fat >= NaN", "",
+                        null};
+        for (String rule : malformed) {
+            boolean rejected = false;
+            try {
+                Query.parse(Arrays.asList("calories >= 0", rule));
+            } catch (IllegalArgumentException e) {
+                rejected = true;
+            }
+            check("rule \"" + rule + "\" is rejected", rejected);
+        }
+
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(write("1,apple,calories,52,fat,0.2", "2,butter,calories,717,fat,81",
+                        "3,cheese,calories,402,fat,33").getPath());
+        List<String> withMalformed = Arrays.asList("calories >= 0", "fat > 1");
+        check("a malformed rule matches nothing",
+                        foodData.filterByNutrients(withMalformed).isEmpty()
+                                        && foodData.countByNutrients(withMalformed) == 0
+                                        && foodData.aggregate("fat", withMalformed).getCount() == 0);
+        check("folded rules filter like the tightest range", ids(foodData.filterByNutrients(
+                        Arrays.asList("fat >= 0", "fat <= 100", "fat >= 10", "fat <= 50")))
+                                        .equals(Arrays.asList("3"))
+                        && foodData.countByNutrients(Arrays.asList("fat >= 50", "fat <= 10")) == 0);
+    }
+
+    /**
+     * prefixSearch returns at most limit items in name order, whatever the case of the prefix,
+     * and a prefix ending in Character.MAX_VALUE still finds its names: its range ends where the
+     * last smaller char of the prefix is increased, or is open when there is none
+     */
+    private static void prefixSearchStopsAtLimit() {
+        FoodData foodData = new FoodData();
+        String max = String.valueOf(Character.MAX_VALUE);
+        String[] names = {"banana", "Applesauce", "apple", "Apple pie", "apricot", "a" + max,
+                        "a" + max + "z", max, max + max, max + "a"};
+        for (int i = 0; i < names.length; i++) {
+            foodData.addFoodItem(new FoodItem(String.valueOf(i), names[i]));
+        }
+        check("prefixSearch stops at the limit in name order",
+                        ids(foodData.prefixSearch("app", 2)).equals(Arrays.asList("2", "3"))
+                                        && ids(foodData.prefixSearch("APP", 10))
+                                                        .equals(Arrays.asList("2", "3", "1")));
+        check("prefixSearch with a limit of 0 or less finds nothing",
+                        foodData.prefixSearch("app", 0).isEmpty()
+                                        && foodData.prefixSearch("app", -1).isEmpty());
+        check("an empty or null prefix matches every name", ids(foodData.prefixSearch("", 3))
+                        .equals(Arrays.asList("2", "3", "1"))
+                        && foodData.prefixSearch(null, 100).size() == names.length);
+        check("prefixSearch finds nothing for an unknown prefix",
+                        foodData.prefixSearch("cherry", 10).isEmpty());
+        check("a prefix ending in Character.MAX_VALUE stops before the next char",
+                        ids(foodData.prefixSearch("a" + max, 10)).equals(Arrays.asList("5", "6")));
+        check("a prefix of only Character.MAX_VALUE is open above",
+                        ids(foodData.prefixSearch(max, 10)).equals(Arrays.asList("7", "9", "8"))
+                                        && ids(foodData.prefixSearch(max + max, 10))
+                                                        .equals(Arrays.asList("8")));
+    }
+
+    /**
+     * Items with equal names come back in the order they were added from every name-ordered
+     * API: getAllFoodItems, filterByName, prefixSearch and the saved file
+     * A list from getAllFoodItems is a snapshot that a later add does not change
+     *
+     * @throws IOException
+     */
+    private static void equalNamesKeepTheirOrder() throws IOException {
+        FoodData foodData = new FoodData();
+        foodData.addFoodItem(new FoodItem("1", "Apple"));
+        for (String id : new String[] {"first", "second", "third"}) {
+            foodData.addFoodItem(new FoodItem(id, "Milk"));
+        }
+        List<String> expected = Arrays.asList("first", "second", "third");
+        File saved = File.createTempFile("fooddata", ".csv");
+        saved.deleteOnExit();
+        foodData.saveFoodItems(saved.getPath());
+        List<String> savedIds = new ArrayList<String>();
+        for (String line : Files.readAllLines(saved.toPath())) {
+            if (line.contains("Milk")) {
+                savedIds.add(line.substring(0, line.indexOf(',')));
+            }
+        }
+        check("equal names keep the order they were added in",
+                        ids(foodData.getAllFoodItems().subList(1, 4)).equals(expected)
+                                        && ids(foodData.filterByName("milk")).equals(expected)
+                                        && ids(foodData.prefixSearch("mi", 10)).equals(expected)
+                                        && savedIds.equals(expected));
+
+        List<FoodItem> before = foodData.getAllFoodItems();
+        foodData.addFoodItem(new FoodItem("4", "Bread"));
+        check("getAllFoodItems returns a snapshot", before.size() == 4
+                        && foodData.getAllFoodItems().size() == 5
+                        && foodData.getAllFoodItems() == foodData.getAllFoodItems());
+    }
+
+    /**
+     * Gets the ids of food items
+     *
+     * @param foodItems the food items
+     * @return their ids, in the same order
+     */
+    private static List<String> ids(List<FoodItem> foodItems) {
+        List<String> ids = new ArrayList<String>();
+        for (FoodItem foodItem : foodItems) {
+            ids.add(foodItem.getID());
+        }
+        return ids;
+    }
+
+    /**
+     * A nutrient an item was never given is absent, not 0: the item does not match a rule on it,
+     * does not count in its statistics, and is saved without it
+     *
+     * @throws IOException
+     */
+    private static void absentNutrientsAreNotZero() throws IOException {
+        File file = write("1,salted,calories,10,sodium,500", "2,plain,calories,20");
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(file.getPath());
+        RangeStatistics sodium = foodData.aggregate("sodium", new ArrayList<String>());
+        check("an absent nutrient matches no rule",
+                        foodData.filterByNutrients(Arrays.asList("sodium <= 100")).isEmpty()
+                                        && foodData.countByNutrients(Arrays.asList("sodium <= 100",
+                                                        "calories >= 0")) == 0);
+        check("an absent nutrient is not aggregated", sodium.getCount() == 1
+                        && sodium.getMin() == 500 && sodium.getSum() == 500);
+
+        File saved = File.createTempFile("fooddata", ".csv");
+        saved.deleteOnExit();
+        foodData.saveFoodItems(saved.getPath());
+        List<String> lines = Files.readAllLines(saved.toPath());
+        check("an absent nutrient is not saved", lines.size() == 2
+                        && lines.get(0).startsWith("2,plain") && !lines.get(0).contains("sodium")
+                        && lines.get(1).contains("sodium,500"));
+
+        File snapshot = File.createTempFile("fooddata", ".snapshot");
+        snapshot.deleteOnExit();
+        foodData.saveSnapshot(snapshot.getPath());
+        FoodData loaded = new FoodData();
+        loaded.loadFoodItems(snapshot.getPath());
+        for (int i = 0; new File(snapshot.getPath() + "." + i + ".idx").exists(); i++) {
+            new File(snapshot.getPath() + "." + i + ".idx").deleteOnExit();
+        }
+        FoodItem stranger = new FoodItem("x", "stranger");
+        check("updateNutrient leaves an item that was never added alone",
+                        !foodData.updateNutrient(stranger, "sugar", 5)
+                                        && !stranger.hasNutrient("sugar")
+                                        && foodData.filterByNutrients(Arrays.asList("sugar >= 0"))
+                                                        .isEmpty()
+                                        && !foodData.getAllFoodItems().get(0).hasNutrient("sugar"));
+        check("an absent nutrient stays absent in a snapshot",
+                        loaded.filterByNutrients(Arrays.asList("sodium <= 100")).isEmpty()
+                                        && loaded.aggregate("sodium", new ArrayList<String>())
+                                                        .getCount() == 1);
+    }
+
+    /**
+     * filterByName returns its matches in name order, like getAllFoodItems, whatever the order
+     * they were added in
+     */
+    private static void nameMatchesAreInNameOrder() {
+        FoodData foodData = new FoodData();
+        for (String name : new String[] {"Soy milk", "apple soy", "SOY BEAN", "beef", "soy milk"}) {
+            foodData.addFoodItem(new FoodItem(name, name));
+        }
+        List<String> names = new ArrayList<String>();
+        for (FoodItem foodItem : foodData.filterByName("soy")) {
+            names.add(foodItem.getName());
+        }
+        check("filterByName returns name order",
+                        names.equals(Arrays.asList("apple soy", "SOY BEAN", "Soy milk", "soy milk")));
+    }
+
+    /**
+     * NaN and infinite values are rejected where they enter, before any index sees them
+     */
+    private static void nonFiniteValuesAreRejected() {
+        FoodItem apple = new FoodItem("1", "apple");
+        apple.addNutrient(Nutrient.CALORIES, 52);
+        boolean rejected = false;
+        try {
+            apple.addNutrient("calories", Double.NaN);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check("addNutrient rejects NaN",
+                        rejected && apple.getNutrientValue(Nutrient.CALORIES) == 52);
+
+        FoodData foodData = new FoodData();
+        foodData.addFoodItem(apple);
+        rejected = false;
+        try {
+            foodData.updateNutrient(apple, "calories", Double.POSITIVE_INFINITY);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check("updateNutrient rejects infinite values", rejected
+                        && foodData.filterByNutrients(Arrays.asList("calories == 52")).size() == 1
+                        && foodData.getTotal(Nutrient.CALORIES) == 52);
+    }
+
+    /**
+     * Readers query a FoodData while one writer adds items, and check the value of every result,
+     * not only that no exception was thrown. Item i has i calories and is added i-th, so a
+     * consistent read sees items 0 to m - 1, where m is at least the count of adds finished before
+     * the query and at most one more than the count finished after it, as one add may be under
+     * way: a range of calories returns consecutive values, and the total is m(m - 1) / 2.
+     *
+     * @param items number of items the writer adds
+     * @param readers number of reader threads
+     * @throws InterruptedException
+     */
+    private static void readersSeeConsistentResults(int items, int readers)
+                    throws InterruptedException {
+        FoodData foodData = new FoodData();
+        AtomicInteger added = new AtomicInteger();
+        AtomicInteger wrong = new AtomicInteger();
+        AtomicInteger queries = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < items; i++) {
+                FoodItem foodItem = new FoodItem("id" + i, "item" + i);
+                foodItem.addNutrient(Nutrient.CALORIES, i);
+                foodItem.addNutrient(Nutrient.FAT, i % 10);
+                foodData.addFoodItem(foodItem);
+                added.incrementAndGet();
+            }
+        });
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; r++) {
+            long seed = r;
+            threads.add(new Thread(() -> {
+                Random rnd = new Random(seed);
+                while (added.get() < items) {
+                    int before = added.get();
+                    int low = rnd.nextInt(items);
+                    int high = low + rnd.nextInt(200);
+                    List<FoodItem> found = foodData.filterByNutrients(
+                                    Arrays.asList("calories >= " + low, "calories <= " + high));
+                    int count = foodData.countByNutrients(Arrays.asList("calories >= " + low,
+                                    "calories <= " + high));
+                    double total = foodData.getTotal(Nutrient.CALORIES);
+                    // a snapshot of every item, iterated while the writer keeps adding
+                    int listed = 0;
+                    for (FoodItem foodItem : foodData.getAllFoodItems()) {
+                        listed += foodItem == null ? 0 : 1;
+                    }
+                    int after = added.get();
+
+                    // items low to min(high, m - 1), in the order they were added
+                    int fewest = Math.max(0, Math.min(high, before - 1) - low + 1);
+                    int most = Math.max(0, Math.min(high, after) - low + 1);
+                    boolean consistent = found.size() >= fewest && found.size() <= most
+                                    && count >= fewest && count <= most;
+                    for (int k = 0; consistent && k < found.size(); k++) {
+                        consistent = found.get(k).getNutrientValue(Nutrient.CALORIES) == low + k;
+                    }
+                    // the total of items 0 to m - 1 for some m in [before, after + 1]
+                    long m = Math.round((1 + Math.sqrt(1 + 8 * total)) / 2);
+                    consistent &= listed >= before && listed <= after + 1;
+                    consistent &= m * (m - 1) / 2 == total
+                                    && (m >= before && m <= after + 1 || total == 0 && before <= 1);
+                    if (!consistent) {
+                        wrong.incrementAndGet();
+                    }
+                    queries.incrementAndGet();
+                }
+            }));
+        }
+        writer.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        writer.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        check("concurrent readers see consistent results (" + queries.get() + " queries)",
+                        wrong.get() == 0 && foodData.getAllFoodItems().size() == items);
+    }
+
+    /**
+     * Removing most items compacts them away; queries, updates and later removals still see
+     * exactly the remaining items, including one that was added twice
+     *
+     * @throws IOException
+     */
+    private static void removalsAreCompacted() throws IOException {
+        String[] lines = new String[1000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = i + ",item" + i + ",calories," + i + ",fat," + (i % 7);
+        }
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(write(lines).getPath());
+        List<FoodItem> all = new ArrayList<FoodItem>(foodData.getAllFoodItems());
+        FoodItem twice = all.get(0);
+        foodData.addFoodItem(twice);
+
+        // every item but the ones whose calories are a multiple of 10
+        List<FoodItem> kept = new ArrayList<FoodItem>();
+        boolean removedAll = true;
+        for (FoodItem foodItem : all) {
+            if ((int) foodItem.getNutrientValue(Nutrient.CALORIES) % 10 == 0) {
+                kept.add(foodItem);
+            } else {
+                removedAll &= foodData.removeFoodItem(foodItem);
+            }
+        }
+        removedAll &= !foodData.removeFoodItem(all.get(1));
+        foodData.updateNutrient(twice, "fat", 100);
+        List<FoodItem> fat = foodData.filterByNutrients(Arrays.asList("fat == 100"));
+        List<FoodItem> range = foodData.filterByNutrients(Arrays.asList("calories <= 95"));
+        check("removals are compacted", removedAll && foodData.getAllFoodItems().size() == 101
+                        && fat.size() == 2 && fat.get(0) == twice && fat.get(1) == twice
+                        && range.size() == 11
+                        && foodData.getTotal(Nutrient.CALORIES) == 49500
+                        && foodData.filterByName("item99").size() == 1);
+
+        // the loaded items survived the compaction and read their rows in the compacted store
+        FoodItem survivor = kept.get(5);
+        foodData.updateNutrient(survivor, "fat", 200);
+        FoodItem gone = null;
+        for (FoodItem foodItem : all) {
+            gone = foodItem.getName().equals("item3") ? foodItem : gone;
+        }
+        check("compacted items stay consistent", survivor.getNutrientValue(Nutrient.FAT) == 200
+                        && foodData.filterByNutrients(Arrays.asList("fat == 200")).size() == 1
+                        && foodData.filterByNutrients(Arrays.asList("fat == 200")).get(0) == survivor
+                        && gone.getName().equals("item3")
+                        && gone.getNutrientValue(Nutrient.CALORIES) == 3
+                        && !gone.hasNutrient("sodium"));
+
+        boolean removedTwice = foodData.removeFoodItem(twice) && foodData.removeFoodItem(twice)
+                        && !foodData.removeFoodItem(twice);
+        check("an item added twice is removed twice", removedTwice
+                        && foodData.filterByNutrients(Arrays.asList("fat == 100")).isEmpty()
+                        && foodData.getAllFoodItems().size() == kept.size() - 1);
+    }
+
+    /**
+     * countByNutrients and aggregate answer like a filter over every item, for random rules on
+     * one or several nutrients, with the indexes on the heap and mapped from a snapshot
+     *
+     * @throws IOException
+     */
+    private static void countsAndAggregatesMatchAFilter() throws IOException {
+        Random rnd = new Random(21);
+        String[] nutrients = {"calories", "fat", "protein"};
+        String[] lines = new String[3000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = i + ",item" + i + ",calories," + rnd.nextInt(800) / 4.0 + ",fat,"
+                            + rnd.nextInt(40);
+            if (i % 5 != 0) {
+                // every fifth item has no protein
+                lines[i] += ",protein," + rnd.nextInt(120) / 2.0;
+            }
+        }
+        FoodData heap = new FoodData();
+        heap.loadFoodItems(write(lines).getPath());
+        File snapshot = File.createTempFile("fooddata", ".snapshot");
+        snapshot.deleteOnExit();
+        heap.saveSnapshot(snapshot.getPath());
+        for (int i = 0; i < nutrients.length; i++) {
+            new File(snapshot.getPath() + "." + i + ".idx").deleteOnExit();
+        }
+        FoodData mapped = new FoodData();
+        mapped.loadFoodItems(snapshot.getPath());
+
+        String[] comparators = {">=", "==", "<="};
+        int wrongCounts = 0;
+        int wrongStatistics = 0;
+        for (int round = 0; round < 300; round++) {
+            List<String> rules = new ArrayList<String>();
+            for (int n = rnd.nextInt(4); n > 0; n--) {
+                String nutrient = nutrients[rnd.nextInt(nutrients.length)];
+                String comparator = comparators[rnd.nextInt(comparators.length)];
+                double value = comparator.equals("==") ? rnd.nextInt(40) : rnd.nextInt(200);
+                rules.add(nutrient + " " + comparator + " " + value);
+            }
+            String aggregated = nutrients[rnd.nextInt(nutrients.length)];
+            Query query = Query.parse(rules);
+            int count = 0;
+            int present = 0;
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (FoodItem foodItem : heap.getAllFoodItems()) {
+                if (!query.test(foodItem)) {
+                    continue;
+                }
+                count++;
+                if (foodItem.hasNutrient(aggregated)) {
+                    double value = foodItem.getNutrientValue(aggregated);
+                    present++;
+                    sum += value;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            for (FoodData foodData : new FoodData[] {heap, mapped}) {
+                if (foodData.countByNutrients(rules) != count) {
+                    wrongCounts++;
+                }
+                RangeStatistics statistics = foodData.aggregate(aggregated, rules);
+                if (statistics.getCount() != present
+                                || Math.abs(statistics.getSum() - sum) > 1e-6 * Math.abs(sum)
+                                || present > 0 && (statistics.getMin() != min
+                                                || statistics.getMax() != max)) {
+                    wrongStatistics++;
+                }
+            }
+        }
+        check("countByNutrients matches a filter", wrongCounts == 0);
+        check("aggregate matches a filter", wrongStatistics == 0);
+    }
+
+    /**
+     * A mapped index whose header is corrupt fails to open with an IOException
+     *
+     * @throws IOException
+     */
+    private static void corruptMappedIndexIsRejected() throws IOException {
+        File file = File.createTempFile("fooddata", ".idx");
+        file.deleteOnExit();
+        double[] keys = new double[1000];
+        int[] ordinals = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            ordinals[i] = i;
+        }
+        MappedBPTree.write(file.getPath(), keys, ordinals);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < keys.length; i++) {
+            values.add(i);
+        }
+        check("mapped index opens",
+                        new MappedBPTree<Integer>(file.getPath(), values).size() == keys.length);
+        // page size, then root page
+        for (int offset : new int[] {8, 12}) {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            byte[] corrupt = Arrays.copyOf(bytes, bytes.length);
+            Arrays.fill(corrupt, offset, offset + 4, offset == 8 ? (byte) 0 : (byte) 0x7f);
+            Files.write(file.toPath(), corrupt);
+            boolean rejected = false;
+            try {
+                new MappedBPTree<Integer>(file.getPath(), values);
+            } catch (IOException e) {
+                rejected = true;
+            }
+            check("mapped index with a corrupt header field at " + offset + " is rejected",
+                            rejected);
+            Files.write(file.toPath(), bytes);
+        }
+    }
+
+    /**
+     * A snapshot whose stored index is not a permutation of the items in ascending order of
+     * their values, the items without a value last, fails to load with an IOException
+     *
+     * @throws IOException
+     */
+    private static void unsortedSnapshotIndexIsRejected() throws IOException {
+        List<FoodItem> items = new ArrayList<FoodItem>();
+        double[] calories = {30, 10, Double.NaN, 20};
+        for (int i = 0; i < calories.length; i++) {
+            items.add(new FoodItem("id" + i, "item" + i));
+            if (!Double.isNaN(calories[i])) {
+                items.get(i).addNutrient(Nutrient.CALORIES, calories[i]);
+            }
+        }
+        File file = File.createTempFile("fooddata", ".snapshot");
+        file.deleteOnExit();
+        String[] nutrients = {Nutrient.CALORIES.getName()};
+        FoodSnapshot.write(file.getPath(), items, nutrients, new int[][] {{1, 3, 0, 2}});
+        check("sorted snapshot index loads", Arrays.equals(
+                        FoodSnapshot.read(file.getPath()).getSortedOrdinals(0),
+                        new int[] {1, 3, 0, 2}));
+        int[][] corrupt = {{3, 1, 0, 2}, {1, 3, 3, 2}, {1, 3, 0, 4}, {1, 2, 3, 0}, {1, 3, -1, 2}};
+        for (int[] ordinals : corrupt) {
+            FoodSnapshot.write(file.getPath(), items, nutrients, new int[][] {ordinals});
+            boolean rejected = false;
+            try {
+                FoodSnapshot.read(file.getPath());
+            } catch (IOException e) {
+                rejected = true;
+            }
+            check("snapshot index " + Arrays.toString(ordinals) + " is rejected", rejected);
+        }
+    }
+
+    /**
+     * A loaded snapshot answers queries from the index files saved with it, and still answers
+     * them once a change copies an index back to the heap
+     *
+     * @throws IOException
+     */
+    private static void snapshotIndexesAreMapped() throws IOException {
+        String[] lines = new String[2000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = i + ",item" + i + ",calories," + (i % 500) + ",fat," + (i % 7);
+        }
+        FoodData saved = new FoodData();
+        saved.loadFoodItems(write(lines).getPath());
+        saved.removeFoodItem(saved.getAllFoodItems().get(0));
+        File snapshot = File.createTempFile("fooddata", ".snapshot");
+        snapshot.deleteOnExit();
+        saved.saveSnapshot(snapshot.getPath());
+        List<File> indexFiles = new ArrayList<File>();
+        for (int i = 0; new File(snapshot.getPath() + "." + i + ".idx").exists(); i++) {
+            indexFiles.add(new File(snapshot.getPath() + "." + i + ".idx"));
+            indexFiles.get(i).deleteOnExit();
+        }
+
+        FoodData loaded = new FoodData();
+        loaded.loadFoodItems(snapshot.getPath());
+        List<String> rules = Arrays.asList("calories >= 100", "calories <= 199", "fat == 3");
+        List<String> high = Arrays.asList("calories >= 250");
+        check("snapshot saves its index files", !saved.fileNotFound() && indexFiles.size() >= 2);
+        check("mapped indexes answer like the heap ones", !loaded.fileNotFound()
+                        && loaded.filterByNutrients(rules).size()
+                                        == saved.filterByNutrients(rules).size()
+                        && loaded.countByNutrients(rules) == saved.countByNutrients(rules)
+                        && loaded.aggregate("calories", high).getSum()
+                                        == saved.aggregate("calories", high).getSum()
+                        && loaded.topK("calories", 1, FoodDataADT.Order.DESCENDING).get(0)
+                                        .getNutrientValue(Nutrient.CALORIES) == 499);
+
+        FoodItem added = new FoodItem("new", "new item");
+        added.addNutrient(Nutrient.CALORIES, 150);
+        added.addNutrient(Nutrient.FAT, 3);
+        loaded.addFoodItem(added);
+        loaded.removeFoodItem(loaded.getAllFoodItems().get(1));
+        saved.addFoodItem(added);
+        saved.removeFoodItem(saved.getAllFoodItems().get(1));
+        check("a change copies the mapped indexes to the heap",
+                        loaded.countByNutrients(rules) == saved.countByNutrients(rules)
+                                        && loaded.filterByNutrients(rules).contains(added));
+    }
+
+    /**
+     * The index files of another snapshot are not used even when they cover as many items and
+     * are newer, since their header carries another snapshot id
+     *
+     * @throws IOException
+     */
+    private static void foreignIndexFilesAreIgnored() throws IOException {
+        String[] low = new String[1000];
+        String[] high = new String[low.length];
+        for (int i = 0; i < low.length; i++) {
+            low[i] = i + ",item" + i + ",calories," + i + ",fat," + (i % 7);
+            high[i] = i + ",item" + i + ",calories," + (1000 + i) + ",fat," + (i % 5);
+        }
+        FoodData saved = new FoodData();
+        saved.loadFoodItems(write(low).getPath());
+        FoodData other = new FoodData();
+        other.loadFoodItems(write(high).getPath());
+        File snapshot = File.createTempFile("fooddata", ".snapshot");
+        File otherSnapshot = File.createTempFile("fooddata", ".snapshot");
+        snapshot.deleteOnExit();
+        otherSnapshot.deleteOnExit();
+        saved.saveSnapshot(snapshot.getPath());
+        other.saveSnapshot(otherSnapshot.getPath());
+        for (int i = 0; new File(otherSnapshot.getPath() + "." + i + ".idx").exists(); i++) {
+            File indexFile = new File(snapshot.getPath() + "." + i + ".idx");
+            Files.copy(new File(otherSnapshot.getPath() + "." + i + ".idx").toPath(),
+                            indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            indexFile.deleteOnExit();
+            new File(otherSnapshot.getPath() + "." + i + ".idx").deleteOnExit();
+        }
+
+        FoodData loaded = new FoodData();
+        loaded.loadFoodItems(snapshot.getPath());
+        List<String> rules = Arrays.asList("calories <= 499", "fat == 3");
+        check("index files of another snapshot are ignored", !loaded.fileNotFound()
+                        && loaded.countByNutrients(rules) == saved.countByNutrients(rules)
+                        && loaded.filterByNutrients(rules).size() == saved
+                                        .filterByNutrients(rules).size()
+                        && loaded.countByNutrients(rules) > 0);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        loadSkipsNonFiniteValues();
+        nonFiniteValuesAreRejected();
+        nameMatchesAreInNameOrder();
+        rulesAreParsedAndFolded();
+        prefixSearchStopsAtLimit();
+        absentNutrientsAreNotZero();
+        equalNamesKeepTheirOrder();
+        readersSeeConsistentResults(20000, 3);
+        removalsAreCompacted();
+        countsAndAggregatesMatchAFilter();
+        corruptMappedIndexIsRejected();
+        unsortedSnapshotIndexIsRejected();
+        snapshotIndexesAreMapped();
+        foreignIndexFilesAreIgnored();
+        System.out.println(failures + " failures");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
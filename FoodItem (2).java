@@ -1,7 +1,10 @@
 package application;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -10,6 +13,12 @@ import java.util.List;
 /**
  * This class represents a food item with all its properties.
  * 
+ * A food item is either created on its own and keeps its properties in its fields, or is the
+ * flyweight of a row of a FoodStore and reads them from the store's columns. The values of the
+ * nutrients of the Nutrient enum are kept in a double[] by ordinal; only other nutrients go to
+ * the map. A nutrient that was never given reads as 0, but the item does not have it: it is not
+ * indexed, matched by a rule or saved.
+ * 
  * @author aka
  */
 public class FoodItem {
@@ -19,8 +28,20 @@ public class FoodItem {
     // The id of the food item.
     private String id;
 
-    // Map of nutrients and value.
+    // Map of the nutrients that are not in Nutrient and value, null until one is added.
     private HashMap<String, Double> nutrients;
+
+    // Values of the nutrients of Nutrient, by ordinal.
+    private double[] values;
+
+    // Bit i is set once the nutrient of ordinal i has been given a value.
+    private int given;
+
+    // The store holding the properties of a flyweight, null for a food item on its own.
+    private FoodStore store;
+
+    // The row of a flyweight in its store.
+    private int ordinal;
     
     /**
      * Constructor
@@ -30,7 +51,59 @@ public class FoodItem {
     public FoodItem(String id, String name) {
         this.id = id;
         this.name = name;
-        nutrients = new HashMap<String, Double>();
+        values = new double[Nutrient.COUNT];
+        store = null;
+        ordinal = -1;
+    }
+
+    /**
+     * Flyweight constructor, used by FoodStore
+     * @param store the store holding the properties
+     * @param ordinal the row of the food item in the store
+     */
+    FoodItem(FoodStore store, int ordinal) {
+        this.store = store;
+        this.ordinal = ordinal;
+    }
+    
+    /**
+     * Checks whether this food item is the flyweight of a given row
+     * @param store the store
+     * @param ordinal the row
+     * @return true if the item reads its properties from that row
+     */
+    boolean isRowOf(FoodStore store, int ordinal) {
+        return this.store == store && this.ordinal == ordinal;
+    }
+
+    /**
+     * Makes this flyweight read from another row holding the same properties, such as its row
+     * in the store FoodData compacts its rows into. Used by FoodData.
+     * @param store the new store
+     * @param ordinal the row of the food item in the new store
+     */
+    void rebind(FoodStore store, int ordinal) {
+        this.store = store;
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Copies the properties of this flyweight out of its store, so it becomes a food item on its
+     * own and no longer keeps the store reachable. Used by FoodData for removed items.
+     */
+    void detach() {
+        if (store == null) {
+            return;
+        }
+        HashMap<String, Double> row = getNutrients();
+        id = store.getID(ordinal);
+        name = store.getName(ordinal);
+        values = new double[Nutrient.COUNT];
+        store = null;
+        ordinal = -1;
+        for (Map.Entry<String, Double> nutrient : row.entrySet()) {
+            addNutrient(nutrient.getKey(), nutrient.getValue());
+        }
     }
     
     /**
@@ -39,7 +112,7 @@ public class FoodItem {
      * @return name of the food item
      */
     public String getName() {
-        return name;
+        return store == null ? name : store.getName(ordinal);
     }
 
     /**
@@ -48,24 +121,80 @@ public class FoodItem {
      * @return id of the food item
      */
     public String getID() {
-        return id;
+        return store == null ? id : store.getID(ordinal);
     }
     
     /**
-     * Gets the nutrients of the food item
+     * Gets the nutrients of the food item. This is a copy, changing it does not change the item.
      * 
      * @return nutrients of the food item
      */
     public HashMap<String, Double> getNutrients() {
-        return nutrients;
+        HashMap<String, Double> row = new HashMap<String, Double>();
+        if (store != null) {
+            for (String nutrient : store.getNutrients()) {
+                if (store.has(store.column(nutrient), ordinal)) {
+                    row.put(nutrient, store.getValue(nutrient, ordinal));
+                }
+            }
+            return row;
+        }
+        for (Nutrient nutrient : Nutrient.values()) {
+            if ((given & 1 << nutrient.ordinal()) != 0) {
+                row.put(nutrient.getName(), values[nutrient.ordinal()]);
+            }
+        }
+        if (nutrients != null) {
+            row.putAll(nutrients);
+        }
+        return row;
     }
 
     /**
      * Adds a nutrient and its value to this food. 
      * If nutrient already exists, updates its value.
+     * @throws IllegalArgumentException if the value is NaN or infinite
      */
     public void addNutrient(String name, double value) {
-    	nutrients.put(name, value);
+        Nutrient nutrient = Nutrient.of(name);
+        if (nutrient != null) {
+            addNutrient(nutrient, value);
+            return;
+        }
+        checkValue(name, value);
+        if (store != null) {
+            store.setValue(store.addColumn(name), ordinal, value);
+        } else {
+            if (nutrients == null) {
+                nutrients = new HashMap<String, Double>();
+            }
+            nutrients.put(name, value);
+        }
+    }
+
+    /**
+     * Adds a nutrient and its value to this food. 
+     * If nutrient already exists, updates its value.
+     * @throws IllegalArgumentException if the value is NaN or infinite
+     */
+    public void addNutrient(Nutrient nutrient, double value) {
+        checkValue(nutrient.getName(), value);
+        if (store == null) {
+            values[nutrient.ordinal()] = value;
+            given |= 1 << nutrient.ordinal();
+        } else {
+            store.setValue(store.column(nutrient), ordinal, value);
+        }
+    }
+
+    /**
+     * Checks that a nutrient value is a finite number. NaN has no place in the order of the
+     * nutrient indexes, and an infinite value would turn every total into NaN.
+     */
+    static void checkValue(String name, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Illegal value of " + name + ": " + value);
+        }
     }
 
     /**
@@ -73,7 +202,54 @@ public class FoodItem {
      * If not present, then returns 0.
      */
     public double getNutrientValue(String name) {
-        return nutrients.get(name);
+        Nutrient nutrient = Nutrient.of(name);
+        if (nutrient != null) {
+            return getNutrientValue(nutrient);
+        }
+        if (store != null) {
+            return store.getValue(name, ordinal);
+        }
+        Double value = nutrients == null ? null : nutrients.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Returns the value of the given nutrient for this food item, without hashing its name. 
+     * If not present, then returns 0.
+     */
+    public double getNutrientValue(Nutrient nutrient) {
+        return store == null ? values[nutrient.ordinal()] : store.getValue(nutrient, ordinal);
+    }
+
+    /**
+     * Gets the names of the nutrients of this food that are not in Nutrient.
+     */
+    Collection<String> getExtraNutrients() {
+        if (store != null) {
+            List<String> given = new ArrayList<String>();
+            for (String nutrient : store.getExtraNutrients()) {
+                if (store.has(store.column(nutrient), ordinal)) {
+                    given.add(nutrient);
+                }
+            }
+            return given;
+        }
+        return nutrients == null ? Collections.<String>emptySet() : nutrients.keySet();
+    }
+
+    /**
+     * Checks whether the food item has a value for the given nutrient.
+     */
+    boolean hasNutrient(String name) {
+        if (store != null) {
+            int column = store.column(name);
+            return column >= 0 && store.has(column, ordinal);
+        }
+        Nutrient nutrient = Nutrient.of(name);
+        if (nutrient != null) {
+            return (given & 1 << nutrient.ordinal()) != 0;
+        }
+        return nutrients != null && nutrients.containsKey(name);
     }
     
 }
@@ -0,0 +1,503 @@
+package application;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Parallel reader for food item files. The file is cut into byte ranges that start and end at
+ * line breaks, every range is memory-mapped and parsed as its own task on a ForkJoinPool, and the
+ * parsed items are joined back in file order, so the result is the same as reading the file line
+ * by line.
+ *
+ * The parser works on the mapped bytes in place: it finds the commas of a line in one pass, reads
+ * the numbers straight from the bytes, and reuses one String per nutrient name. The id and the
+ * name are the only strings created for a line. Every range fills a FoodStore of its own, by
+ * column, and the stores are appended in file order, so no FoodItem or HashMap is created per
+ * line.
+ *
+ * A gzip compressed file, as FoodItemWriter writes it, is inflated into memory first and then cut
+ * and parsed the same way.
+ *
+ * A line is kept when it has an id, a name and one or more nutrient and value pairs, see
+ * FoodDataADT#loadFoodItems. Every nutrient name found becomes a column of the store, whatever
+ * its place in the line; a line without some nutrient reads 0 for it. Any other line (a header,
+ * a blank line, a value that is not a finite number) is skipped.
+ */
+public class FoodItemLoader {
+
+    // Largest range parsed by one task, so a multi-GB file never needs one huge array
+    private static final int MAX_CHUNK_BYTES = 1 << 26;
+
+    // Smallest range worth a task of its own
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    // Ranges per thread, so a slow range does not leave the other threads idle
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // Fields of a line with the five nutrients of Nutrient, the first size of the buffers
+    private static final int FIELDS = 12;
+
+    // Pool the ranges are parsed on
+    private final ForkJoinPool pool;
+
+    // Rows kept by the last load
+    private long rows;
+
+    // Duration of the last load
+    private long nanos;
+
+
+    /**
+     * Public constructor
+     *
+     * @param pool pool the file is parsed on
+     */
+    public FoodItemLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+
+    /**
+     * Reads every valid food item of a file
+     *
+     * @param filePath path of the food item data file
+     * @return store of the food items, ordinals in file order
+     * @throws IOException if the file cannot be read, FileNotFoundException if it does not exist
+     */
+    public FoodStore load(String filePath) throws IOException {
+        long start = System.nanoTime();
+        FoodStore loaded = new FoodStore();
+        List<ForkJoinTask<FoodStore>> tasks = new ArrayList<ForkJoinTask<FoodStore>>();
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            FileChannel channel = file.getChannel();
+            if (isGzip(channel)) {
+                byte[] bytes = inflate(filePath);
+                int[] bounds = split(bytes);
+                for (int chunk = 0; chunk + 1 < bounds.length; chunk++) {
+                    ByteBuffer range = ByteBuffer.wrap(bytes, bounds[chunk],
+                                    bounds[chunk + 1] - bounds[chunk]).slice();
+                    tasks.add(pool.submit(() -> parse(range)));
+                }
+            } else {
+                long[] bounds = split(channel);
+                for (int chunk = 0; chunk + 1 < bounds.length; chunk++) {
+                    long from = bounds[chunk];
+                    long to = bounds[chunk + 1];
+                    ByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                    tasks.add(pool.submit(() -> parse(range)));
+                }
+            }
+            // join in file order so the ordinals follow the file
+            for (ForkJoinTask<FoodStore> task : tasks) {
+                loaded.addAll(task.join());
+            }
+        }
+        rows = loaded.size();
+        nanos = System.nanoTime() - start;
+        return loaded;
+    }
+
+
+    /**
+     * Cuts the file into ranges that end right after a line break, or at the end of the file
+     *
+     * @param channel the file
+     * @return offsets of the range bounds, starting with 0 and ending with the file size
+     * @throws IOException
+     */
+    private long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long chunks = Math.max((long) pool.getParallelism() * CHUNKS_PER_THREAD,
+                        (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+        chunks = Math.max(1, Math.min(chunks, (size + MIN_CHUNK_BYTES - 1) / MIN_CHUNK_BYTES));
+        long[] bounds = new long[(int) chunks + 1];
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            // move the even split forward to the next line break
+            long position = Math.max(bounds[chunk - 1], size * chunk / chunks);
+            bounds[chunk] = size;
+            search: while (position < size) {
+                probe.clear();
+                int read = channel.read(probe, position);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        bounds[chunk] = position + i + 1;
+                        break search;
+                    }
+                }
+                position += read;
+            }
+        }
+        bounds[(int) chunks] = size;
+        return bounds;
+    }
+
+
+    /**
+     * Checks for the two bytes every gzip file starts with
+     *
+     * @param channel the file
+     * @return true if the file is gzip compressed
+     * @throws IOException
+     */
+    private static boolean isGzip(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        return channel.read(magic, 0) == 2 && (magic.get(0) & 0xff) == 0x1f
+                        && (magic.get(1) & 0xff) == 0x8b;
+    }
+
+
+    /**
+     * Inflates a gzip compressed file into memory, which limits it to 2 GB uncompressed
+     *
+     * @param filePath path of the file
+     * @return the uncompressed bytes
+     * @throws IOException
+     */
+    private static byte[] inflate(String filePath) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(filePath), 1 << 16)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+            byte[] chunk = new byte[1 << 16];
+            for (int read = in.read(chunk); read >= 0; read = in.read(chunk)) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+
+    /**
+     * Cuts uncompressed bytes into ranges that end right after a line break, see
+     * split(FileChannel)
+     *
+     * @param bytes the file content
+     * @return offsets of the range bounds, starting with 0 and ending with the length
+     */
+    private int[] split(byte[] bytes) {
+        int chunks = (int) Math.max(1, Math.min((long) pool.getParallelism() * CHUNKS_PER_THREAD,
+                        ((long) bytes.length + MIN_CHUNK_BYTES - 1) / MIN_CHUNK_BYTES));
+        int[] bounds = new int[chunks + 1];
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            int position = (int) Math.max(bounds[chunk - 1], (long) bytes.length * chunk / chunks);
+            while (position < bytes.length && bytes[position] != '\n') {
+                position++;
+            }
+            bounds[chunk] = Math.min(bytes.length, position + 1);
+        }
+        bounds[chunks] = bytes.length;
+        return bounds;
+    }
+
+
+    /**
+     * Parses the lines of one range
+     *
+     * @param bytes the range, made of whole lines
+     * @return store of the food items in the order of the lines
+     */
+    private static FoodStore parse(ByteBuffer bytes) {
+        FoodStore parsed = new FoodStore();
+        Parser parser = new Parser(bytes);
+        int[] commas = new int[FIELDS - 1];
+        String[] nutrients = new String[FIELDS / 2];
+        double[] values = new double[FIELDS / 2];
+        int limit = bytes.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            // one pass finds the end of the line and its commas
+            int found = 0;
+            int lineEnd = lineStart;
+            for (; lineEnd < limit; lineEnd++) {
+                byte b = bytes.get(lineEnd);
+                if (b == '\n') {
+                    break;
+                } else if (b == ',') {
+                    if (found == commas.length) {
+                        commas = Arrays.copyOf(commas, 2 * commas.length);
+                    }
+                    commas[found++] = lineEnd;
+                }
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            // a valid line has an odd number of commas, at least 3, and as with split(","), a
+            // last field
+            if (found >= 3 && found % 2 == 1 && commas[found - 1] + 1 < lineEnd) {
+                // fields 2 and up are nutrient and value pairs, the last value ends the line
+                int pairs = found / 2;
+                if (nutrients.length < pairs) {
+                    nutrients = new String[pairs];
+                    values = new double[pairs];
+                }
+                boolean valid = true;
+                for (int pair = 0; pair < pairs && valid; pair++) {
+                    int field = 2 + 2 * pair;
+                    int valueEnd = field + 1 < found ? commas[field + 1] : lineEnd;
+                    valid = commas[field - 1] + 1 < commas[field];
+                    try {
+                        values[pair] = parser.number(commas[field] + 1, valueEnd);
+                    } catch (NumberFormatException e) {
+                        valid = false;
+                    }
+                    nutrients[pair] = valid ? parser.nutrient(commas[field - 1] + 1, commas[field])
+                                    : null;
+                }
+                if (valid) {
+                    int ordinal = parsed.add(parser.string(lineStart, commas[0]),
+                                    parser.string(commas[0] + 1, commas[1]));
+                    for (int pair = 0; pair < pairs; pair++) {
+                        parsed.setValue(parsed.addColumn(nutrients[pair]), ordinal, values[pair]);
+                    }
+                }
+            }
+            lineStart = next;
+        }
+        return parsed;
+    }
+
+
+    /**
+     * Reads the fields of one range from its bytes. Not thread-safe: every range gets its own.
+     */
+    private static class Parser {
+
+        // Powers of ten that are exact as doubles
+        private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+                        1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+                        1e20, 1e21, 1e22};
+
+        // Most digits whose value is exact in a long and in a double
+        private static final int MAX_DIGITS = 15;
+
+        // The range
+        private final ByteBuffer bytes;
+
+        // Copy of one field, reused
+        private byte[] scratch;
+
+        // Nutrient names seen so far, as lowercase ASCII bytes and as the String to use
+        private final List<byte[]> nutrientBytes;
+        private final List<String> nutrientNames;
+
+        /**
+         * Package constructor
+         *
+         * @param bytes the range
+         */
+        Parser(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.scratch = new byte[64];
+            this.nutrientBytes = new ArrayList<byte[]>();
+            this.nutrientNames = new ArrayList<String>();
+        }
+
+        /**
+         * Decodes a field into a new String
+         *
+         * @param from first byte of the field
+         * @param to end of the field, exclusive
+         * @return the field
+         */
+        String string(int from, int to) {
+            int length = to - from;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                scratch[i] = bytes.get(from + i);
+            }
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Gets the lowercase name of a nutrient field. A name that was seen before, in any case,
+         * is matched on its bytes and its String is reused.
+         *
+         * @param from first byte of the field
+         * @param to end of the field, exclusive
+         * @return lowercase name
+         */
+        String nutrient(int from, int to) {
+            int length = to - from;
+            search: for (int known = 0; known < nutrientBytes.size(); known++) {
+                byte[] name = nutrientBytes.get(known);
+                if (name.length != length) {
+                    continue;
+                }
+                for (int i = 0; i < length; i++) {
+                    if (lowerCase(bytes.get(from + i)) != name[i]) {
+                        continue search;
+                    }
+                }
+                return nutrientNames.get(known);
+            }
+            String name = string(from, to).toLowerCase();
+            byte[] lower = new byte[length];
+            for (int i = 0; i < length; i++) {
+                lower[i] = lowerCase(bytes.get(from + i));
+                if (lower[i] < 0) {
+                    // only ASCII names are matched on their bytes
+                    return name;
+                }
+            }
+            nutrientBytes.add(lower);
+            nutrientNames.add(name);
+            return name;
+        }
+
+        private static byte lowerCase(byte b) {
+            return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+
+        /**
+         * Parses a number field without creating a String. A plain decimal with at most 15
+         * digits and a small exponent is exact as a long, and scaling it by an exact power of
+         * ten rounds once, so the result is the same double Double.parseDouble returns. Any
+         * other form is handed to Double.parseDouble. NaN and infinite values have no place in
+         * the nutrient indexes and are malformed like any other text.
+         *
+         * @param from first byte of the field
+         * @param to end of the field, exclusive
+         * @return the value, finite
+         * @throws NumberFormatException if the field is not a finite number
+         */
+        double number(int from, int to) {
+            int i = from;
+            boolean negative = false;
+            if (i < to && (bytes.get(i) == '-' || bytes.get(i) == '+')) {
+                negative = bytes.get(i) == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            for (; i < to && isDigit(bytes.get(i)); i++, digits++) {
+                mantissa = mantissa * 10 + (bytes.get(i) - '0');
+            }
+            if (i < to && bytes.get(i) == '.') {
+                for (i++; i < to && isDigit(bytes.get(i)); i++, digits++, exponent--) {
+                    mantissa = mantissa * 10 + (bytes.get(i) - '0');
+                }
+            }
+            if (digits > 0 && i < to && (bytes.get(i) == 'e' || bytes.get(i) == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < to && (bytes.get(i) == '-' || bytes.get(i) == '+')) {
+                    negativeExponent = bytes.get(i) == '-';
+                    i++;
+                }
+                int value = 0;
+                int start = i;
+                for (; i < to && isDigit(bytes.get(i)) && i - start < 4; i++) {
+                    value = value * 10 + (bytes.get(i) - '0');
+                }
+                exponent += negativeExponent ? -value : value;
+                if (i == start) {
+                    digits = 0;
+                }
+            }
+            if (i != to || digits == 0 || digits > MAX_DIGITS
+                            || exponent < -(POWERS_OF_TEN.length - 1)
+                            || exponent > POWERS_OF_TEN.length - 1) {
+                double value = Double.parseDouble(string(from, to));
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    throw new NumberFormatException("Not a finite number: " + string(from, to));
+                }
+                return value;
+            }
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+                            : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+    } // End of class Parser
+
+
+    /**
+     * Gets the number of rows kept by the last load
+     *
+     * @return rows
+     */
+    public long getRows() {
+        return rows;
+    }
+
+
+    /**
+     * Gets the throughput of the last load
+     *
+     * @return rows per second
+     */
+    public double getRowsPerSecond() {
+        return nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+
+
+    /**
+     * Reports how fast a file is parsed alone and loaded into a FoodData with its indexes, and
+     * how fast the same FoodData loads back from a binary snapshot.
+     *
+     * Usage: java application.FoodItemLoader file [threads]
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                        : ForkJoinPool.commonPool().getParallelism();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        FoodItemLoader loader = new FoodItemLoader(pool);
+        for (int round = 0; round < 3; round++) {
+            loader.load(args[0]);
+            System.out.println(String.format("parse: %d rows, %.0f rows/s on %d threads",
+                            loader.getRows(), loader.getRowsPerSecond(), threads));
+        }
+        pool.shutdown();
+
+        long start = System.nanoTime();
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(args[0]);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int loaded = foodData.filterByNutrients(null).size();
+        System.out.println(String.format("load with indexes: %.0f rows/s, %.2f s", loaded / seconds,
+                        seconds));
+
+        File snapshot = File.createTempFile("food", ".snapshot");
+        try {
+            foodData.saveSnapshot(snapshot.getPath());
+            foodData = null;
+            start = System.nanoTime();
+            FoodData restored = new FoodData();
+            restored.loadFoodItems(snapshot.getPath());
+            seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("load from snapshot: %.0f rows/s, %.2f s, file %.1f MB",
+                            restored.filterByNutrients(null).size() / seconds, seconds,
+                            snapshot.length() / 1e6));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+} // End of class FoodItemLoader
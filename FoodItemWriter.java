@@ -0,0 +1,225 @@
+package application;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Streaming writer for food item files, in the format FoodDataADT#loadFoodItems reads. Every
+ * field is encoded straight into one large buffer that is handed to the file channel when it is
+ * full, so writing an item creates no strings: ASCII text is copied char by char and whole
+ * nutrient values are printed digit by digit. Anything else falls back to the JDK encoders.
+ *
+ * The five nutrients of Nutrient are written first, in file order, then any other nutrient the
+ * item has.
+ *
+ * The output can be gzip compressed with java.util.zip; FoodItemLoader reads both forms.
+ */
+public class FoodItemWriter implements Closeable {
+
+    /**
+     * How the written bytes are encoded on disk
+     */
+    public enum Compression {
+        NONE, GZIP
+    }
+
+    // Nutrients of a line, in file order
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+
+    // Size of the output buffer
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    // Longest field encoded in place: a UTF-8 char takes at most 3 bytes
+    private static final int MAX_INLINE_CHARS = BUFFER_BYTES / 4;
+
+    // Values below this print the same as Double.toString when written as digits and ".0"
+    private static final double MAX_INLINE_VALUE = 1e7;
+
+    // Encoded nutrient names, each with the commas around it
+    private static final byte[][] NUTRIENT_FIELDS = new byte[NUTRIENTS.length][];
+    static {
+        for (int i = 0; i < NUTRIENTS.length; i++) {
+            NUTRIENT_FIELDS[i] = ("," + NUTRIENTS[i].getName() + ",")
+                            .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Line separator, the same one PrintWriter.println writes
+    private static final byte[] LINE_SEPARATOR =
+                    System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // Destination of the bytes
+    private final WritableByteChannel channel;
+
+    // Bytes not yet handed to the channel
+    private final ByteBuffer buffer;
+
+
+    /**
+     * Public constructor, creates or replaces the file
+     *
+     * @param filePath path of the file
+     * @param compression how the file is encoded
+     * @throws IOException if the file cannot be created
+     */
+    public FoodItemWriter(String filePath, Compression compression) throws IOException {
+        Path path = Paths.get(filePath);
+        if (compression == Compression.GZIP) {
+            channel = Channels.newChannel(new GZIPOutputStream(Files.newOutputStream(path),
+                            BUFFER_BYTES));
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+        buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    }
+
+
+    /**
+     * Writes one food item as a line
+     *
+     * @param item the food item
+     * @throws IOException if the file cannot be written
+     */
+    public void write(FoodItem item) throws IOException {
+        putText(item.getID());
+        put((byte) ',');
+        putText(item.getName());
+        for (int i = 0; i < NUTRIENTS.length; i++) {
+            put(NUTRIENT_FIELDS[i]);
+            putNumber(item.getNutrientValue(NUTRIENTS[i]));
+        }
+        // any other nutrient follows the usual five
+        for (String nutrient : item.getExtraNutrients()) {
+            put((byte) ',');
+            putText(nutrient);
+            put((byte) ',');
+            putNumber(item.getNutrientValue(nutrient));
+        }
+        put(LINE_SEPARATOR);
+    }
+
+
+    /**
+     * Writes what is left in the buffer and closes the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Hands the buffered bytes to the channel
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+    }
+
+
+    private void put(byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            flush();
+        }
+        if (bytes.length > buffer.remaining()) {
+            channel.write(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+
+    /**
+     * Encodes a field as UTF-8, in place when it is ASCII
+     *
+     * @param text the field
+     * @throws IOException
+     */
+    private void putText(String text) throws IOException {
+        int length = text.length();
+        if (length <= MAX_INLINE_CHARS) {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+            int start = buffer.position();
+            int i = 0;
+            for (; i < length && text.charAt(i) < 0x80; i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+            if (i == length) {
+                return;
+            }
+            // not ASCII, encode the whole field instead
+            buffer.position(start);
+        }
+        put(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Prints a nutrient value the way Double.toString does. Whole values below ten million,
+     * which covers nutrient amounts, are printed digit by digit followed by ".0".
+     *
+     * @param value the value
+     * @throws IOException
+     */
+    private void putNumber(double value) throws IOException {
+        boolean negativeZero = value == 0 && Double.doubleToRawLongBits(value) != 0;
+        if (value != Math.rint(value) || Math.abs(value) >= MAX_INLINE_VALUE || negativeZero) {
+            put(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (buffer.remaining() < 12) {
+            flush();
+        }
+        long digits = (long) value;
+        if (digits < 0) {
+            buffer.put((byte) '-');
+            digits = -digits;
+        }
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + digits % 10));
+            digits /= 10;
+        } while (digits > 0);
+        // the digits came out lowest first
+        for (int low = start, high = buffer.position() - 1; low < high; low++, high--) {
+            byte b = buffer.get(low);
+            buffer.put(low, buffer.get(high));
+            buffer.put(high, b);
+        }
+        buffer.put((byte) '.');
+        buffer.put((byte) '0');
+    }
+
+} // End of class FoodItemWriter
@@ -0,0 +1,365 @@
+package application;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Binary snapshot of loaded food items, so a catalog can be opened again without parsing a CSV
+ * file. The items are stored by column: all ids, all names, then one column of doubles per
+ * nutrient, NaN for an item that has no value of it. Each nutrient index is stored as the
+ * ordinals of the items in ascending order of that nutrient, which is the leaf level of the
+ * index, followed by the items without a value in ordinal order; the levels above are rebuilt
+ * from it by the DoubleBPTree bulk-load constructor in linear time, without sorting.
+ *
+ * Every section is written and read with one bulk copy through a memory-mapped file. A snapshot
+ * is limited to 2 GB. Each snapshot written gets a random id, which the files saved along with it
+ * can record to show which snapshot they belong to.
+ *
+ * File layout, all numbers little-endian:
+ *
+ * <pre>
+ * header:     magic, version, count, nutrients (ints), id (long)
+ * nutrients:  for each nutrient, length (int) and UTF-8 bytes of its name
+ * ids:        count + 1 offsets (ints), then the UTF-8 bytes of all ids
+ * names:      count + 1 offsets (ints), then the UTF-8 bytes of all names
+ * values:     count doubles per nutrient, NaN where an item has none
+ * indexes:    count ordinals (ints) per nutrient, in ascending order of its values, NaN last
+ * </pre>
+ */
+public class FoodSnapshot {
+
+    // File format identification
+    private static final int MAGIC = 0x46515344;
+    private static final int VERSION = 2;
+
+    // Bytes of the header
+    private static final int HEADER = 24;
+
+    // Random id of this snapshot, never 0
+    private final long id;
+
+    // Food items in snapshot order, their ordinals start at 0
+    private final FoodStore store;
+
+    // Names of the stored nutrients
+    private final String[] nutrients;
+
+    // Value of every item, by nutrient
+    private final double[][] values;
+
+    // Ordinals in ascending order of the values, by nutrient
+    private final int[][] sortedOrdinals;
+
+
+    /**
+     * Private constructor, snapshots are created by read
+     */
+    private FoodSnapshot(long id, FoodStore store, String[] nutrients, double[][] values,
+                    int[][] sortedOrdinals) {
+        this.id = id;
+        this.store = store;
+        this.nutrients = nutrients;
+        this.values = values;
+        this.sortedOrdinals = sortedOrdinals;
+    }
+
+
+    /**
+     * Checks whether a file starts like a snapshot
+     *
+     * @param filePath path of the file
+     * @return true if the file is a snapshot
+     */
+    public static boolean isSnapshot(String filePath) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(magic, 0) == 4 && magic.getInt(0) == MAGIC;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Writes a snapshot
+     *
+     * @param filePath path of the snapshot, replaced if it exists
+     * @param items food items, ordinal i is the position i in this list
+     * @param nutrients names of the nutrients to store, every item must have them
+     * @param sortedOrdinals for each nutrient, the ordinals of the items that have it in
+     *        ascending order of its value, then those of the items without it
+     * @return id of the new snapshot
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(String filePath, List<FoodItem> items, String[] nutrients,
+                    int[][] sortedOrdinals) throws IOException {
+        int count = items.size();
+        if (sortedOrdinals.length != nutrients.length) {
+            throw new IllegalArgumentException("One index is needed per nutrient");
+        }
+        for (int[] ordinals : sortedOrdinals) {
+            if (ordinals.length != count) {
+                throw new IllegalArgumentException("An index does not cover every item");
+            }
+        }
+        byte[][] names = new byte[nutrients.length][];
+        long length = HEADER;
+        for (int nutrient = 0; nutrient < nutrients.length; nutrient++) {
+            names[nutrient] = nutrients[nutrient].getBytes(StandardCharsets.UTF_8);
+            length += 4 + names[nutrient].length;
+        }
+        int[] idOffsets = new int[count + 1];
+        int[] nameOffsets = new int[count + 1];
+        byte[] ids = encode(items, true, idOffsets);
+        byte[] itemNames = encode(items, false, nameOffsets);
+        length += 8L * (count + 1) + ids.length + itemNames.length;
+        length += 12L * count * nutrients.length;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many items for one snapshot file");
+        }
+        long id = 0;
+        while (id == 0) {
+            id = ThreadLocalRandom.current().nextLong();
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(count);
+            buffer.putInt(nutrients.length);
+            buffer.putLong(id);
+            for (byte[] name : names) {
+                buffer.putInt(name.length);
+                buffer.put(name);
+            }
+            putInts(buffer, idOffsets);
+            buffer.put(ids);
+            putInts(buffer, nameOffsets);
+            buffer.put(itemNames);
+            double[] column = new double[count];
+            for (String nutrient : nutrients) {
+                for (int ordinal = 0; ordinal < count; ordinal++) {
+                    FoodItem item = items.get(ordinal);
+                    column[ordinal] = item.hasNutrient(nutrient) ? item.getNutrientValue(nutrient)
+                                    : Double.NaN;
+                }
+                buffer.asDoubleBuffer().put(column);
+                buffer.position(buffer.position() + 8 * count);
+            }
+            for (int[] ordinals : sortedOrdinals) {
+                putInts(buffer, ordinals);
+            }
+            mapped.force();
+        }
+        return id;
+    }
+
+
+    /**
+     * Encodes the ids or the names of all items into one array
+     *
+     * @param items food items
+     * @param ids true for the ids, false for the names
+     * @param offsets filled with the start of every string and the end of the last one
+     * @return UTF-8 bytes of all strings
+     */
+    private static byte[] encode(List<FoodItem> items, boolean ids, int[] offsets) {
+        byte[][] strings = new byte[items.size()][];
+        long length = 0;
+        for (int i = 0; i < strings.length; i++) {
+            FoodItem item = items.get(i);
+            strings[i] = (ids ? item.getID() : item.getName()).getBytes(StandardCharsets.UTF_8);
+            length += strings[i].length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many items for one snapshot file");
+        }
+        byte[] bytes = new byte[(int) length];
+        for (int i = 0; i < strings.length; i++) {
+            System.arraycopy(strings[i], 0, bytes, offsets[i], strings[i].length);
+            offsets[i + 1] = offsets[i] + strings[i].length;
+        }
+        return bytes;
+    }
+
+
+    private static void putInts(ByteBuffer buffer, int[] ints) {
+        buffer.asIntBuffer().put(ints);
+        buffer.position(buffer.position() + 4 * ints.length);
+    }
+
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] ints = new int[count];
+        buffer.asIntBuffer().get(ints);
+        buffer.position(buffer.position() + 4 * count);
+        return ints;
+    }
+
+
+    /**
+     * Reads a snapshot
+     *
+     * @param filePath path of the snapshot
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static FoodSnapshot read(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a snapshot file: " + filePath);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                            .order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + filePath);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + filePath);
+            }
+            int count = buffer.getInt();
+            String[] nutrients = new String[buffer.getInt()];
+            long id = buffer.getLong();
+            for (int nutrient = 0; nutrient < nutrients.length; nutrient++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                nutrients[nutrient] = new String(name, StandardCharsets.UTF_8);
+            }
+            int[] idOffsets = getInts(buffer, count + 1);
+            byte[] ids = new byte[idOffsets[count]];
+            buffer.get(ids);
+            int[] nameOffsets = getInts(buffer, count + 1);
+            byte[] names = new byte[nameOffsets[count]];
+            buffer.get(names);
+            double[][] values = new double[nutrients.length][count];
+            for (double[] column : values) {
+                buffer.asDoubleBuffer().get(column);
+                buffer.position(buffer.position() + 8 * count);
+            }
+            int[][] sortedOrdinals = new int[nutrients.length][];
+            for (int nutrient = 0; nutrient < nutrients.length; nutrient++) {
+                sortedOrdinals[nutrient] = getInts(buffer, count);
+                // the index is bulk-loaded as it is, so an unsorted one would answer wrongly
+                if (!isSorted(values[nutrient], sortedOrdinals[nutrient])) {
+                    throw new IOException("Corrupt snapshot file, index of " + nutrients[nutrient]
+                                    + " is out of order: " + filePath);
+                }
+            }
+
+            // the value columns become the columns of the store as they are
+            String[] itemIds = new String[count];
+            String[] itemNames = new String[count];
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                itemIds[ordinal] = new String(ids, idOffsets[ordinal],
+                                idOffsets[ordinal + 1] - idOffsets[ordinal], StandardCharsets.UTF_8);
+                itemNames[ordinal] = new String(names, nameOffsets[ordinal],
+                                nameOffsets[ordinal + 1] - nameOffsets[ordinal],
+                                StandardCharsets.UTF_8);
+            }
+            FoodStore store = new FoodStore(nutrients, itemIds, itemNames, values);
+            return new FoodSnapshot(id, store, nutrients, values, sortedOrdinals);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                        | NegativeArraySizeException e) {
+            throw new IOException("Corrupt snapshot file: " + filePath, e);
+        }
+    }
+
+
+    /**
+     * Checks that an index lists every ordinal once, first the items with a value in ascending
+     * order of it, then the items without one in ordinal order
+     *
+     * @param column values by ordinal, NaN for an item without a value
+     * @param ordinals index read from the file
+     * @return true if the index is in this order
+     */
+    private static boolean isSorted(double[] column, int[] ordinals) {
+        BitSet seen = new BitSet(column.length);
+        int previous = -1;
+        for (int ordinal : ordinals) {
+            if (ordinal < 0 || ordinal >= column.length || seen.get(ordinal)) {
+                return false;
+            }
+            seen.set(ordinal);
+            if (previous >= 0) {
+                boolean absent = Double.isNaN(column[ordinal]);
+                boolean previousAbsent = Double.isNaN(column[previous]);
+                if (absent ? previousAbsent && ordinal < previous
+                                : previousAbsent || column[ordinal] < column[previous]) {
+                    return false;
+                }
+            }
+            previous = ordinal;
+        }
+        return true;
+    }
+
+
+    /**
+     * Gets the random id the snapshot was written with
+     *
+     * @return snapshot id
+     */
+    public long getId() {
+        return id;
+    }
+
+
+    /**
+     * Gets the food items, ordinal i is the row i of the store
+     *
+     * @return store of the food items
+     */
+    public FoodStore getStore() {
+        return store;
+    }
+
+
+    /**
+     * Gets the names of the stored nutrients
+     *
+     * @return nutrient names
+     */
+    public String[] getNutrients() {
+        return nutrients;
+    }
+
+
+    /**
+     * Gets the value of every item for one nutrient, the column of the store
+     *
+     * @param nutrient position of the nutrient in getNutrients()
+     * @return values by ordinal, 0 for an item without a value
+     */
+    public double[] getValues(int nutrient) {
+        return values[nutrient];
+    }
+
+
+    /**
+     * Gets the ordinals of all items in ascending order of one nutrient, the items without a
+     * value of it last
+     *
+     * @param nutrient position of the nutrient in getNutrients()
+     * @return ordinals
+     */
+    public int[] getSortedOrdinals(int nutrient) {
+        return sortedOrdinals[nutrient];
+    }
+
+} // End of class FoodSnapshot
@@ -0,0 +1,462 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Food items stored by column: one array of ids, one array of names and one array of doubles per
+ * nutrient, all indexed by a dense ordinal. A row costs a few array slots instead of a HashMap
+ * with its entries and boxed values, and a scan over one nutrient reads consecutive doubles.
+ *
+ * The FoodItem of a row is a flyweight that only holds the store and the ordinal, see item(int).
+ * Each column keeps a bit per row that is set once the row is given a value, see has(int, int):
+ * a nutrient that a row was never given reads as 0 but is absent, so it is not indexed, matched
+ * or saved. Rows are only ever appended; select(int[]) copies some of them to a new store. Every store has a column for each Nutrient, which can be
+ * read by ordinal without hashing its name.
+ *
+ * Not thread-safe: FoodData changes its store under its write lock.
+ */
+public class FoodStore {
+
+    // Rows allocated by the first append
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Position of each nutrient in values
+    private final HashMap<String, Integer> columns;
+
+    // Column of each Nutrient, by ordinal
+    private final int[] schema;
+
+    // Lowercase names of the nutrients by column
+    private final List<String> nutrients;
+
+    // Names of the columns that are not a Nutrient, in column order
+    private final List<String> extraNutrients;
+
+    // Id and name of every row
+    private String[] ids;
+    private String[] names;
+
+    // Values by column, then by ordinal
+    private double[][] values;
+
+    // Rows that have a value, by column
+    private BitSet[] present;
+
+    // Number of rows
+    private int size;
+
+
+    /**
+     * Public constructor, the store has no rows and a column for each Nutrient, in order
+     */
+    public FoodStore() {
+        this(Nutrient.names());
+    }
+
+
+    /**
+     * Public constructor, the store has no rows
+     *
+     * @param nutrients lowercase names of the first columns, followed by any Nutrient missing
+     */
+    public FoodStore(Collection<String> nutrients) {
+        this.columns = new HashMap<String, Integer>();
+        this.schema = new int[Nutrient.COUNT];
+        this.nutrients = new ArrayList<String>();
+        this.extraNutrients = new ArrayList<String>();
+        this.ids = new String[0];
+        this.names = new String[0];
+        this.values = new double[0][];
+        this.present = new BitSet[0];
+        for (String nutrient : nutrients) {
+            addColumn(nutrient);
+        }
+        for (Nutrient nutrient : Nutrient.values()) {
+            addColumn(nutrient.getName());
+        }
+    }
+
+
+    /**
+     * Package constructor that takes over whole columns, for FoodSnapshot
+     *
+     * @param nutrients lowercase names of the columns
+     * @param ids id of every row
+     * @param names name of every row
+     * @param values values by column, each as long as ids, NaN where a row has no value; the
+     *        NaN are replaced by 0
+     */
+    FoodStore(String[] nutrients, String[] ids, String[] names, double[][] values) {
+        this.columns = new HashMap<String, Integer>();
+        this.schema = new int[Nutrient.COUNT];
+        this.nutrients = new ArrayList<String>(Arrays.asList(nutrients));
+        this.extraNutrients = new ArrayList<String>();
+        this.ids = ids;
+        this.names = names;
+        this.values = values;
+        this.present = new BitSet[values.length];
+        this.size = ids.length;
+        for (int column = 0; column < values.length; column++) {
+            present[column] = new BitSet(size);
+            for (int ordinal = 0; ordinal < size; ordinal++) {
+                if (Double.isNaN(values[column][ordinal])) {
+                    values[column][ordinal] = 0;
+                } else {
+                    present[column].set(ordinal);
+                }
+            }
+        }
+        for (int column = 0; column < nutrients.length; column++) {
+            columns.put(nutrients[column], column);
+            Nutrient nutrient = Nutrient.of(nutrients[column]);
+            if (nutrient != null) {
+                schema[nutrient.ordinal()] = column;
+            } else {
+                extraNutrients.add(nutrients[column]);
+            }
+        }
+        for (Nutrient nutrient : Nutrient.values()) {
+            if (!columns.containsKey(nutrient.getName())) {
+                addColumn(nutrient.getName());
+            }
+        }
+    }
+
+
+    /**
+     * Gets the column of a nutrient, adding it if it is new. The rows already stored have no
+     * value in a new column.
+     *
+     * @param nutrient lowercase name of the nutrient
+     * @return column
+     */
+    public int addColumn(String nutrient) {
+        Integer column = columns.get(nutrient);
+        if (column != null) {
+            return column;
+        }
+        values = Arrays.copyOf(values, values.length + 1);
+        values[values.length - 1] = new double[ids.length];
+        present = Arrays.copyOf(present, present.length + 1);
+        present[present.length - 1] = new BitSet();
+        nutrients.add(nutrient);
+        columns.put(nutrient, values.length - 1);
+        Nutrient known = Nutrient.of(nutrient);
+        if (known != null) {
+            schema[known.ordinal()] = values.length - 1;
+        } else {
+            extraNutrients.add(nutrient);
+        }
+        return values.length - 1;
+    }
+
+
+    /**
+     * Appends a row that has no nutrient value yet
+     *
+     * @param id id of the item
+     * @param name name of the item
+     * @return ordinal of the row
+     */
+    public int add(String id, String name) {
+        ensureCapacity(size + 1);
+        ids[size] = id;
+        names[size] = name;
+        return size++;
+    }
+
+
+    /**
+     * Appends a row with the id, the name and the value of every nutrient of a food item. A
+     * nutrient the store has no column for yet gets one, and the row has no value in the columns
+     * the item has no value for.
+     *
+     * @param foodItem the food item
+     * @return ordinal of the row
+     */
+    public int add(FoodItem foodItem) {
+        for (String nutrient : foodItem.getExtraNutrients()) {
+            addColumn(nutrient);
+        }
+        int ordinal = add(foodItem.getID(), foodItem.getName());
+        for (int column = 0; column < values.length; column++) {
+            String nutrient = nutrients.get(column);
+            if (foodItem.hasNutrient(nutrient)) {
+                setValue(column, ordinal, foodItem.getNutrientValue(nutrient));
+            }
+        }
+        return ordinal;
+    }
+
+
+    /**
+     * Appends every row of another store, matching the columns by name. Columns that only the
+     * other store has are added.
+     *
+     * @param other the rows to append
+     */
+    public void addAll(FoodStore other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.ids, 0, ids, size, other.size);
+        System.arraycopy(other.names, 0, names, size, other.size);
+        for (int column = 0; column < other.values.length; column++) {
+            int target = addColumn(other.nutrients.get(column));
+            System.arraycopy(other.values[column], 0, values[target], size, other.size);
+            BitSet otherPresent = other.present[column];
+            for (int ordinal = otherPresent.nextSetBit(0); ordinal >= 0;
+                            ordinal = otherPresent.nextSetBit(ordinal + 1)) {
+                present[target].set(size + ordinal);
+            }
+        }
+        size += other.size;
+    }
+
+
+    /**
+     * Creates a store with some rows of this one and the same columns. The flyweights of this
+     * store keep reading from it until they are rebound, see FoodItem#rebind(FoodStore, int).
+     *
+     * @param ordinals rows to copy, in the order of the new ordinals
+     * @return the new store
+     */
+    public FoodStore select(int[] ordinals) {
+        String[] selectedIds = new String[ordinals.length];
+        String[] selectedNames = new String[ordinals.length];
+        double[][] selectedValues = new double[values.length][ordinals.length];
+        for (int row = 0; row < ordinals.length; row++) {
+            selectedIds[row] = ids[ordinals[row]];
+            selectedNames[row] = names[ordinals[row]];
+            for (int column = 0; column < values.length; column++) {
+                selectedValues[column][row] = present[column].get(ordinals[row])
+                                ? values[column][ordinals[row]] : Double.NaN;
+            }
+        }
+        return new FoodStore(nutrients.toArray(new String[0]), selectedIds, selectedNames,
+                        selectedValues);
+    }
+
+
+    /**
+     * Grows every array to hold at least the given number of rows
+     *
+     * @param capacity rows
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) {
+            return;
+        }
+        int grown = Math.max(capacity, Math.max(INITIAL_CAPACITY, ids.length + (ids.length >> 1)));
+        ids = Arrays.copyOf(ids, grown);
+        names = Arrays.copyOf(names, grown);
+        for (int column = 0; column < values.length; column++) {
+            values[column] = Arrays.copyOf(values[column], grown);
+        }
+    }
+
+
+    /**
+     * Gets the number of rows
+     *
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Gets the column of a nutrient
+     *
+     * @param nutrient lowercase name of the nutrient
+     * @return column, or -1 if the store has no such column
+     */
+    public int column(String nutrient) {
+        Integer column = columns.get(nutrient);
+        return column == null ? -1 : column;
+    }
+
+
+    /**
+     * Gets the column of a Nutrient
+     *
+     * @param nutrient the nutrient
+     * @return column
+     */
+    public int column(Nutrient nutrient) {
+        return schema[nutrient.ordinal()];
+    }
+
+
+    /**
+     * Gets the names of the columns
+     *
+     * @return lowercase nutrient names by column
+     */
+    public List<String> getNutrients() {
+        return nutrients;
+    }
+
+
+    /**
+     * Gets the names of the columns that are not a Nutrient
+     *
+     * @return lowercase nutrient names in column order
+     */
+    public List<String> getExtraNutrients() {
+        return extraNutrients;
+    }
+
+
+    /**
+     * Gets the id of a row
+     *
+     * @param ordinal the row
+     * @return id
+     */
+    public String getID(int ordinal) {
+        return ids[ordinal];
+    }
+
+
+    /**
+     * Gets the name of a row
+     *
+     * @param ordinal the row
+     * @return name
+     */
+    public String getName(int ordinal) {
+        return names[ordinal];
+    }
+
+
+    /**
+     * Gets the value of a nutrient in a row
+     *
+     * @param column column of the nutrient
+     * @param ordinal the row
+     * @return value
+     */
+    public double getValue(int column, int ordinal) {
+        return values[column][ordinal];
+    }
+
+
+    /**
+     * Gets the value of a Nutrient in a row
+     *
+     * @param nutrient the nutrient
+     * @param ordinal the row
+     * @return value
+     */
+    public double getValue(Nutrient nutrient, int ordinal) {
+        return values[schema[nutrient.ordinal()]][ordinal];
+    }
+
+
+    /**
+     * Gets the value of a nutrient in a row by its name
+     *
+     * @param nutrient lowercase name of the nutrient
+     * @param ordinal the row
+     * @return value, 0 if the store has no such column
+     */
+    public double getValue(String nutrient, int ordinal) {
+        Integer column = columns.get(nutrient);
+        return column == null ? 0 : values[column][ordinal];
+    }
+
+
+    /**
+     * Checks whether a row has a value in a column
+     *
+     * @param column column of the nutrient
+     * @param ordinal the row
+     * @return true if the row was given a value
+     */
+    public boolean has(int column, int ordinal) {
+        return present[column].get(ordinal);
+    }
+
+
+    /**
+     * Counts the rows that have a value in a column
+     *
+     * @param column column of the nutrient
+     * @return number of rows
+     */
+    public int count(int column) {
+        return present[column].cardinality();
+    }
+
+
+    /**
+     * Gets the rows that have a value in a column, for scans. It is not a copy and must not be
+     * changed.
+     *
+     * @param column column of the nutrient
+     * @return set of the ordinals that have a value
+     */
+    BitSet getPresent(int column) {
+        return present[column];
+    }
+
+
+    /**
+     * Sets the value of a nutrient in a row, which then has a value in that column
+     *
+     * @param column column of the nutrient
+     * @param ordinal the row
+     * @param value new value
+     */
+    public void setValue(int column, int ordinal, double value) {
+        values[column][ordinal] = value;
+        present[column].set(ordinal);
+    }
+
+
+    /**
+     * Gets the array behind a column, for scans. It is not a copy and may be longer than size();
+     * it must not be changed, and is replaced when the store grows.
+     *
+     * @param column column of the nutrient
+     * @return values by ordinal
+     */
+    double[] getColumn(int column) {
+        return values[column];
+    }
+
+
+    /**
+     * Creates the flyweight FoodItem of a row. Each call creates a new one, so callers that need
+     * to compare items by identity keep the one they created.
+     *
+     * @param ordinal the row
+     * @return food item reading from this store
+     */
+    public FoodItem item(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Ordinal: " + ordinal + ", size: " + size);
+        }
+        return new FoodItem(this, ordinal);
+    }
+
+
+    /**
+     * Creates the flyweight FoodItem of every row, see item(int)
+     *
+     * @return food items by ordinal
+     */
+    public List<FoodItem> items() {
+        List<FoodItem> items = new ArrayList<FoodItem>(size);
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            items.add(new FoodItem(this, ordinal));
+        }
+        return items;
+    }
+
+} // End of class FoodStore
@@ -47,6 +47,7 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -825,11 +826,11 @@ public class GUI extends Application {
 							names.sort((h1, h2) -> h1.toLowerCase().compareTo(h2.toLowerCase()));
 							
 							FoodItem newFood = new FoodItem(enterFoodID.getText(),enterFoodName.getText());
-							newFood.addNutrient("calories", Double.parseDouble(enterCalories.getText()));
-							newFood.addNutrient("fat", Double.parseDouble(enterFat.getText()));
-							newFood.addNutrient("carbohydrate", Double.parseDouble(enterCarb.getText()));
-							newFood.addNutrient("fiber", Double.parseDouble(enterFiber.getText()));
-							newFood.addNutrient("protein", Double.parseDouble(enterProtein.getText()));
+							newFood.addNutrient(Nutrient.CALORIES, Double.parseDouble(enterCalories.getText()));
+							newFood.addNutrient(Nutrient.FAT, Double.parseDouble(enterFat.getText()));
+							newFood.addNutrient(Nutrient.CARBOHYDRATE, Double.parseDouble(enterCarb.getText()));
+							newFood.addNutrient(Nutrient.FIBER, Double.parseDouble(enterFiber.getText()));
+							newFood.addNutrient(Nutrient.PROTEIN, Double.parseDouble(enterProtein.getText()));
 							
 							foodData.addFoodItem(newFood);
 							foodDataList.add(newFood);
@@ -890,20 +891,12 @@ public class GUI extends Application {
                  * Below, create the labels and set the positions, size and styles
                  */
 				
-				double calories = 0.0;
-				double fat = 0.0;
-				double carb = 0.0;
-				double fiber = 0.0;
-				double protein = 0.0;
-				if (mealListData.getAllFoodItems().size() > 0) {
-				for (int i = 0; i < mealListData.getAllFoodItems().size();i++) {
-				    calories += mealListData.getAllFoodItems().get(i).getNutrientValue("calories");
-				    fat += mealListData.getAllFoodItems().get(i).getNutrientValue("fat");
-				    carb += mealListData.getAllFoodItems().get(i).getNutrientValue("carbohydrate");
-				    fiber += mealListData.getAllFoodItems().get(i).getNutrientValue("fiber");
-				    protein += mealListData.getAllFoodItems().get(i).getNutrientValue("protein");
-				}
-				}
+				//the meal keeps running totals as items are added and removed
+				double calories = mealListData.getTotal(Nutrient.CALORIES);
+				double fat = mealListData.getTotal(Nutrient.FAT);
+				double carb = mealListData.getTotal(Nutrient.CARBOHYDRATE);
+				double fiber = mealListData.getTotal(Nutrient.FIBER);
+				double protein = mealListData.getTotal(Nutrient.PROTEIN);
 				
 				
 				Label lb1 = new Label();
@@ -1568,14 +1561,14 @@ public class GUI extends Application {
 
  }
  /**
-  * private helper that used to check whether a string is a double 
+  * private helper that used to check whether a string is a finite, non-negative double 
   * @param input string
   * @return boolean
   */
  private static boolean isDouble(String a) {
      try {
          double value = Double.parseDouble(a);
-         if (value < 0.0) {
+         if (value < 0.0 || Double.isNaN(value) || Double.isInfinite(value)) {
              return false;
          }
      } catch (Exception e) {
@@ -1652,7 +1645,7 @@ public class GUI extends Application {
 //                 Collections.sort(getListView().getItems());
                  getListView().getItems().sort((h1, h2) -> h1.toLowerCase().compareTo(h2.toLowerCase()));
                  
-                 mealList.getAllFoodItems().remove(getIndex());
+                 mealList.removeFoodItem(mealList.getAllFoodItems().get(getIndex()));
 //                 for (int i = 0; i < mealList.getAllFoodItems().size();i++) {
 //                     if (mealList.getAllFoodItems().get(i).getName().equals( a)) {
 //                         mealList.getAllFoodItems().remove(i); 
@@ -1731,7 +1724,7 @@ public class GUI extends Application {
      if (filterByName.size() != 0) {
          
          for (int i = 0; i < filterByName.size();i++) {
-             nameList.retainAll(foodData.filterByName(filterByName.get(i)));
+             nameList.retainAll(new HashSet<FoodItem>(foodData.filterByName(filterByName.get(i))));
          }
          
          System.out.print("Fuck " + filterByName.get(0));
@@ -1742,7 +1735,7 @@ public class GUI extends Application {
      System.out.println(nutriList.size()); 
      
      foodDataList.clear();
-     nutriList.retainAll(nameList);
+     nutriList.retainAll(new HashSet<FoodItem>(nameList));
      foodDataList.addAll(nutriList);
      
      names.clear();
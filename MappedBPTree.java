@@ -0,0 +1,1046 @@
+package application;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+
+/**
+ * Read-only B+ tree over double keys that lives in a memory-mapped file instead of on the heap.
+ * The file is a sequence of fixed-size pages: page 0 is a header, then come the leaves from left
+ * to right, then each level of internal nodes up to the root. Leaves store double keys and the int
+ * ordinals of their values, the same pairs a DoubleBPTree keeps, so opening an index is a header
+ * read plus FileChannel.map and costs nothing per entry. The pages are paged in by the operating
+ * system on first access and do not count against the heap or the garbage collector.
+ *
+ * The tree is written once by {@link #write(String, double[], int[], int, long)} from sorted pairs
+ * and cannot be changed afterwards; insert, remove and update throw UnsupportedOperationException.
+ * The header can carry the id of the snapshot the index was saved with, so a reader can tell an
+ * index of its snapshot from one left over by another.
+ * It answers the queries of NutrientIndexADT like a DoubleBPTree: since every leaf is packed to
+ * an even share of the entries, the position of a key among all entries follows from its leaf
+ * page, so a count takes two descents. Every internal page also keeps the sum of the keys under
+ * each of its children, so a sum adds up whole subtrees between the two bounds and only reads the
+ * pages on the paths to them, in O(log N) like DoubleBPTree.
+ *
+ * Page layout, all numbers little-endian:
+ *
+ * <pre>
+ * header:   magic, version, pageSize, root, firstLeaf, height (ints), count, snapshot (longs)
+ * leaf:     type, size, next, previous (ints), keys (doubles), ordinals (ints)
+ * internal: type, size, unused, unused (ints), keys (doubles), children (ints), sums (doubles)
+ * </pre>
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public class MappedBPTree<V> implements NutrientIndexADT<V> {
+
+    // File format identification
+    private static final int MAGIC = 0x46514254;
+    private static final int VERSION = 3;
+
+    // Bytes of the file header in page 0
+    private static final int HEADER = 40;
+
+    // Page size used when none is given, a common operating system page
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    // Page types
+    private static final int LEAF = 1;
+    private static final int INTERNAL = 2;
+
+    // Bytes of the page header in front of the keys
+    private static final int PAGE_HEADER = 16;
+
+    // Largest mapping per segment, a MappedByteBuffer cannot exceed 2 GB
+    private static final int SEGMENT_BYTES = 1 << 30;
+
+    // Mapped parts of the file
+    private ByteBuffer[] segments;
+
+    // Size of every page in bytes
+    private int pageSize;
+
+    // Pages per mapped segment
+    private int pagesPerSegment;
+
+    // Root page and first leaf page
+    private int root;
+    private int firstLeaf;
+
+    // Number of levels and of entries
+    private int height;
+    private long count;
+
+    // Id of the snapshot the index was saved with, 0 for none
+    private long snapshot;
+
+    // Values by ordinal
+    private List<V> values;
+
+
+    /**
+     * Opens an index written by {@link #write(String, double[], int[], int, long)}. Only the header is
+     * read, the rest of the file is mapped.
+     *
+     * @param filePath path of the index file
+     * @param values values by ordinal, the ones the ordinals were written for
+     * @throws IOException if the file cannot be read, is not an index file or its header is
+     *         corrupt
+     */
+    public MappedBPTree(String filePath, List<V> values) throws IOException {
+        this.values = values;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER) {
+                throw new IOException("Not a mapped index file: " + filePath);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a mapped index file: " + filePath);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported index version " + header.getInt(4) + ": "
+                                + filePath);
+            }
+            pageSize = header.getInt(8);
+            root = header.getInt(12);
+            firstLeaf = header.getInt(16);
+            height = header.getInt(20);
+            count = header.getLong(24);
+            snapshot = header.getLong(32);
+            checkHeader(filePath, channel.size());
+            segments = map(channel, FileChannel.MapMode.READ_ONLY, channel.size());
+        }
+    }
+
+
+    /**
+     * Checks that the header read from a file describes pages that fit in it, so a corrupt file
+     * fails to open instead of failing on some later search
+     *
+     * @param filePath path of the index file
+     * @param length bytes in the file
+     * @throws IOException if a header field is out of range
+     */
+    private void checkHeader(String filePath, long length) throws IOException {
+        if (pageSize < 64 || pageSize % 8 != 0 || length % pageSize != 0) {
+            throw new IOException("Corrupt mapped index file, page size " + pageSize + ": "
+                            + filePath);
+        }
+        long pages = length / pageSize;
+        if (pages < 2 || pages > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt mapped index file, " + pages + " pages: " + filePath);
+        }
+        if (root < 1 || root >= pages || firstLeaf < 1 || firstLeaf >= pages) {
+            throw new IOException("Corrupt mapped index file, root " + root + ", first leaf "
+                            + firstLeaf + ": " + filePath);
+        }
+        if (height < 1 || height > pages - 1 || count < 0
+                        || count > (pages - 1) * leafCapacity(pageSize)) {
+            throw new IOException("Corrupt mapped index file, height " + height + ", count "
+                            + count + ": " + filePath);
+        }
+    }
+
+
+    /**
+     * Maps a file in segments of whole pages
+     *
+     * @param channel open channel of the file
+     * @param mode mapping mode
+     * @param length bytes to map
+     * @return mapped segments
+     * @throws IOException
+     */
+    private ByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long length)
+                    throws IOException {
+        pagesPerSegment = Math.max(1, SEGMENT_BYTES / pageSize);
+        long segmentBytes = (long) pagesPerSegment * pageSize;
+        ByteBuffer[] mapped = new ByteBuffer[(int) ((length + segmentBytes - 1) / segmentBytes)];
+        for (int i = 0; i < mapped.length; i++) {
+            long position = i * segmentBytes;
+            MappedByteBuffer buffer =
+                            channel.map(mode, position, Math.min(segmentBytes, length - position));
+            mapped[i] = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mapped;
+    }
+
+
+    /**
+     * Gets the buffer holding a page
+     *
+     * @param page page number
+     * @return ByteBuffer
+     */
+    private ByteBuffer segment(int page) {
+        return segments[page / pagesPerSegment];
+    }
+
+
+    /**
+     * Gets the offset of a page inside its segment
+     *
+     * @param page page number
+     * @return byte offset
+     */
+    private int offset(int page) {
+        return (page % pagesPerSegment) * pageSize;
+    }
+
+
+    /**
+     * Gets how many keys a leaf page holds
+     *
+     * @param pageSize
+     * @return capacity
+     */
+    private static int leafCapacity(int pageSize) {
+        return (pageSize - PAGE_HEADER) / 12;
+    }
+
+
+    /**
+     * Gets how many keys an internal page holds, it has one child and one sum more than keys
+     *
+     * @param pageSize
+     * @return capacity
+     */
+    private static int nodeCapacity(int pageSize) {
+        return (pageSize - PAGE_HEADER - 12) / 20;
+    }
+
+
+    /**
+     * Writes an index with the default page size and no snapshot id
+     *
+     * @see #write(String, double[], int[], int, long)
+     */
+    public static void write(String filePath, double[] sortedKeys, int[] ordinals)
+                    throws IOException {
+        write(filePath, sortedKeys, ordinals, DEFAULT_PAGE_SIZE, 0);
+    }
+
+
+    /**
+     * Writes an index with no snapshot id
+     *
+     * @see #write(String, double[], int[], int, long)
+     */
+    public static void write(String filePath, double[] sortedKeys, int[] ordinals, int pageSize)
+                    throws IOException {
+        write(filePath, sortedKeys, ordinals, pageSize, 0);
+    }
+
+
+    /**
+     * Writes an index file from keys that are already sorted. Every page is packed full, which
+     * suits a tree that is never changed, and the entries are spread evenly so the last page of
+     * a level is not left nearly empty.
+     *
+     * @param filePath path of the index file, replaced if it exists
+     * @param sortedKeys keys in ascending order, duplicates allowed
+     * @param ordinals ordinal of the value of each key
+     * @param pageSize bytes per page, a multiple of 8 of at least 64
+     * @param snapshot id of the snapshot the index belongs to, 0 for none
+     * @throws IOException if the file cannot be written
+     * @see DoubleBPTree#sort(double[], int[])
+     */
+    public static void write(String filePath, double[] sortedKeys, int[] ordinals, int pageSize,
+                    long snapshot) throws IOException {
+        if (pageSize < 64 || pageSize % 8 != 0) {
+            throw new IllegalArgumentException("Illegal page size: " + pageSize);
+        }
+        if (sortedKeys.length != ordinals.length) {
+            throw new IllegalArgumentException("Keys and ordinals differ in length");
+        }
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (!(sortedKeys[i - 1] <= sortedKeys[i])) {
+                throw new IllegalArgumentException("Keys are not sorted: " + sortedKeys[i]
+                                + " after " + sortedKeys[i - 1]);
+            }
+        }
+        int leafCapacity = leafCapacity(pageSize);
+        int nodeCapacity = nodeCapacity(pageSize);
+
+        // count the pages of every level first so the file can be mapped in one go
+        List<Integer> levels = new ArrayList<Integer>();
+        int pages = Math.max(1, (sortedKeys.length + leafCapacity - 1) / leafCapacity);
+        levels.add(pages);
+        while (pages > 1) {
+            pages = (pages + nodeCapacity) / (nodeCapacity + 1);
+            levels.add(pages);
+        }
+        long totalPages = 1;
+        for (int level : levels) {
+            totalPages += level;
+        }
+        if (totalPages > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many entries for one index file");
+        }
+
+        MappedBPTree<Object> tree = new MappedBPTree<Object>();
+        tree.pageSize = pageSize;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            tree.segments = tree.map(channel, FileChannel.MapMode.READ_WRITE,
+                            totalPages * pageSize);
+
+            // leaves, left to right from page 1
+            int length = sortedKeys.length;
+            int leaves = levels.get(0);
+            int[] children = new int[leaves];
+            double[] firstKeys = new double[leaves];
+            double[] sums = new double[leaves];
+            for (int leaf = 0, from = 0; leaf < leaves; leaf++) {
+                int to = from + (length - from) / (leaves - leaf);
+                int page = 1 + leaf;
+                ByteBuffer buffer = tree.segment(page);
+                int offset = tree.offset(page);
+                buffer.putInt(offset, LEAF);
+                buffer.putInt(offset + 4, to - from);
+                buffer.putInt(offset + 8, leaf + 1 < leaves ? page + 1 : 0);
+                buffer.putInt(offset + 12, leaf > 0 ? page - 1 : 0);
+                int keyOffset = offset + PAGE_HEADER;
+                int ordinalOffset = keyOffset + 8 * leafCapacity;
+                for (int i = from; i < to; i++) {
+                    buffer.putDouble(keyOffset + 8 * (i - from), sortedKeys[i]);
+                    buffer.putInt(ordinalOffset + 4 * (i - from), ordinals[i]);
+                    sums[leaf] += sortedKeys[i];
+                }
+                children[leaf] = page;
+                firstKeys[leaf] = to > from ? sortedKeys[from] : 0;
+                from = to;
+            }
+
+            // internal levels, each over the one below
+            int next = 1 + leaves;
+            for (int level = 1; level < levels.size(); level++) {
+                int nodes = levels.get(level);
+                int[] parents = new int[nodes];
+                double[] parentKeys = new double[nodes];
+                double[] parentSums = new double[nodes];
+                for (int node = 0, from = 0; node < nodes; node++) {
+                    int to = from + (children.length - from) / (nodes - node);
+                    int page = next++;
+                    ByteBuffer buffer = tree.segment(page);
+                    int offset = tree.offset(page);
+                    buffer.putInt(offset, INTERNAL);
+                    buffer.putInt(offset + 4, to - from - 1);
+                    int keyOffset = offset + PAGE_HEADER;
+                    int childOffset = keyOffset + 8 * nodeCapacity;
+                    int sumOffset = childOffset + 4 * (nodeCapacity + 1);
+                    for (int i = from; i < to; i++) {
+                        if (i > from) {
+                            buffer.putDouble(keyOffset + 8 * (i - from - 1), firstKeys[i]);
+                        }
+                        buffer.putInt(childOffset + 4 * (i - from), children[i]);
+                        buffer.putDouble(sumOffset + 8 * (i - from), sums[i]);
+                        parentSums[node] += sums[i];
+                    }
+                    parents[node] = page;
+                    parentKeys[node] = firstKeys[from];
+                    from = to;
+                }
+                children = parents;
+                firstKeys = parentKeys;
+                sums = parentSums;
+            }
+
+            ByteBuffer header = tree.segment(0);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, pageSize);
+            header.putInt(12, children[0]);
+            header.putInt(16, 1);
+            header.putInt(20, levels.size());
+            header.putLong(24, length);
+            header.putLong(32, snapshot);
+            for (ByteBuffer segment : tree.segments) {
+                ((MappedByteBuffer) segment).force();
+            }
+        }
+    }
+
+
+    /**
+     * Constructor used while writing a file
+     */
+    private MappedBPTree() {
+    }
+
+
+    /**
+     * Gets the number of entries in the index
+     *
+     * @return count
+     */
+    public long size() {
+        return count;
+    }
+
+
+    /**
+     * Gets the id of the snapshot the index was saved with
+     *
+     * @return snapshot id, 0 for an index written without one
+     */
+    public long getSnapshot() {
+        return snapshot;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#insert(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void insert(Double key, V value) {
+        throw new UnsupportedOperationException("A mapped index is read-only");
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#remove(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean remove(Double key, V value) {
+        throw new UnsupportedOperationException("A mapped index is read-only");
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#update(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean update(Double oldKey, Double newKey, V value) {
+        throw new UnsupportedOperationException("A mapped index is read-only");
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double key, String comparator) {
+        if (key == null || comparator == null) {
+            return new ArrayList<V>();
+        }
+        double value = key.doubleValue();
+        if (comparator.contentEquals(">=")) {
+            return scan(value, Double.POSITIVE_INFINITY, true, true);
+        } else if (comparator.contentEquals("==")) {
+            return scan(value, value, true, true);
+        } else if (comparator.contentEquals("<=")) {
+            return scan(Double.NEGATIVE_INFINITY, value, true, true);
+        } else {
+            return new ArrayList<V>();
+        }
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#rangeSearch(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public List<V> rangeSearch(Double lowKey, Double highKey, String inclusivity) {
+        if (inclusivity == null || inclusivity.length() != 2
+                        || "[(".indexOf(inclusivity.charAt(0)) < 0
+                        || "])".indexOf(inclusivity.charAt(1)) < 0) {
+            return new ArrayList<V>();
+        }
+        return scan(lowKey == null ? Double.NEGATIVE_INFINITY : lowKey.doubleValue(),
+                        highKey == null ? Double.POSITIVE_INFINITY : highKey.doubleValue(),
+                        lowKey == null || inclusivity.charAt(0) == '[',
+                        highKey == null || inclusivity.charAt(1) == ']');
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#ascending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> ascending(Double fromKey, int limit) {
+        List<V> returnList = new ArrayList<V>();
+        int leafCapacity = leafCapacity(pageSize);
+        double key = fromKey == null ? Double.NEGATIVE_INFINITY : fromKey.doubleValue();
+        int page = findLeaf(key);
+        int i = lowerBound(page, key);
+        while (page != 0 && returnList.size() < limit) {
+            ByteBuffer buffer = segment(page);
+            int offset = offset(page);
+            if (i < buffer.getInt(offset + 4)) {
+                int ordinalOffset = offset + PAGE_HEADER + 8 * leafCapacity;
+                returnList.add(values.get(buffer.getInt(ordinalOffset + 4 * i++)));
+            } else {
+                page = buffer.getInt(offset + 8);
+                i = 0;
+            }
+        }
+        return returnList;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#descending(java.lang.Object, int)
+     */
+    @Override
+    public List<V> descending(Double fromKey, int limit) {
+        List<V> returnList = new ArrayList<V>();
+        int leafCapacity = leafCapacity(pageSize);
+        int page;
+        int i;
+        if (fromKey == null || fromKey.doubleValue() == Double.POSITIVE_INFINITY) {
+            page = findLeaf(Double.POSITIVE_INFINITY);
+            while (segment(page).getInt(offset(page) + 8) != 0) {
+                page = segment(page).getInt(offset(page) + 8);
+            }
+            i = segment(page).getInt(offset(page) + 4) - 1;
+        } else {
+            // the last key not above fromKey comes right before the first key above it
+            double after = Math.nextUp(fromKey.doubleValue());
+            page = findLeaf(after);
+            i = lowerBound(page, after) - 1;
+        }
+        while (page != 0 && returnList.size() < limit) {
+            ByteBuffer buffer = segment(page);
+            int offset = offset(page);
+            if (i >= 0) {
+                int ordinalOffset = offset + PAGE_HEADER + 8 * leafCapacity;
+                returnList.add(values.get(buffer.getInt(ordinalOffset + 4 * i--)));
+            } else {
+                page = buffer.getInt(offset + 12);
+                i = page == 0 ? -1 : segment(page).getInt(offset(page) + 4) - 1;
+            }
+        }
+        return returnList;
+    }
+
+
+    /**
+     * Finds the first position in a page whose key is greater than or equal to the given key
+     *
+     * @param page page number
+     * @param key
+     * @return position in [0, size of the page]
+     */
+    private int lowerBound(int page, double key) {
+        ByteBuffer buffer = segment(page);
+        int keyOffset = offset(page) + PAGE_HEADER;
+        int low = 0;
+        int high = buffer.getInt(offset(page) + 4);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getDouble(keyOffset + 8 * mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Gets the leftmost leaf page that can hold keys greater than or equal to the given key
+     *
+     * @param key
+     * @return page number
+     */
+    private int findLeaf(double key) {
+        int page = root;
+        int nodeCapacity = nodeCapacity(pageSize);
+        while (segment(page).getInt(offset(page)) == INTERNAL) {
+            int childOffset = offset(page) + PAGE_HEADER + 8 * nodeCapacity;
+            page = segment(page).getInt(childOffset + 4 * lowerBound(page, key));
+        }
+        return page;
+    }
+
+
+    /**
+     * Range scan engine, the same walk as DoubleBPTree#scan over the leaf pages
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @param lowInclusive whether keys equal to lowKey qualify
+     * @param highInclusive whether keys equal to highKey qualify
+     * @return values in ascending key order
+     */
+    private List<V> scan(double lowKey, double highKey, boolean lowInclusive,
+                    boolean highInclusive) {
+        List<V> returnList = new ArrayList<V>();
+        int leafCapacity = leafCapacity(pageSize);
+        int page = findLeaf(lowKey);
+        int i = lowerBound(page, lowKey);
+        while (page != 0) {
+            ByteBuffer buffer = segment(page);
+            int offset = offset(page);
+            int size = buffer.getInt(offset + 4);
+            int keyOffset = offset + PAGE_HEADER;
+            int ordinalOffset = keyOffset + 8 * leafCapacity;
+            for (; i < size; i++) {
+                double key = buffer.getDouble(keyOffset + 8 * i);
+                if (!lowInclusive && key == lowKey) {
+                    // equal keys may run over several leaves
+                    continue;
+                }
+                if (key > highKey || (!highInclusive && key == highKey)) {
+                    return returnList;
+                }
+                returnList.add(values.get(buffer.getInt(ordinalOffset + 4 * i)));
+            }
+            page = buffer.getInt(offset + 8);
+            i = 0;
+        }
+        return returnList;
+    }
+
+
+    /**
+     * Action on one entry of a range
+     */
+    private interface EntryAction {
+        void accept(double key, int ordinal);
+    }
+
+
+    /**
+     * Passes every entry whose key lies in a closed range to an action, in ascending key order
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @param action called on each entry
+     */
+    private void visit(double lowKey, double highKey, EntryAction action) {
+        int leafCapacity = leafCapacity(pageSize);
+        int page = findLeaf(lowKey);
+        int i = lowerBound(page, lowKey);
+        while (page != 0) {
+            ByteBuffer buffer = segment(page);
+            int offset = offset(page);
+            int size = buffer.getInt(offset + 4);
+            int keyOffset = offset + PAGE_HEADER;
+            int ordinalOffset = keyOffset + 8 * leafCapacity;
+            for (; i < size; i++) {
+                double key = buffer.getDouble(keyOffset + 8 * i);
+                if (key > highKey) {
+                    return;
+                }
+                action.accept(key, buffer.getInt(ordinalOffset + 4 * i));
+            }
+            page = buffer.getInt(offset + 8);
+            i = 0;
+        }
+    }
+
+
+    /**
+     * Gets the position among all entries of the first one whose key is not below the given key.
+     * write spreads the entries evenly over the leaves, pages 1 and up: the first leaves hold
+     * count / leaves entries and the last count % leaves of them one more.
+     *
+     * @param key
+     * @return position in [0, count]
+     */
+    private long rank(double key) {
+        int page = findLeaf(key);
+        int leafCapacity = leafCapacity(pageSize);
+        long leaves = Math.max(1, (count + leafCapacity - 1) / leafCapacity);
+        long leaf = page - firstLeaf;
+        long shorter = leaves - count % leaves;
+        return leaf * (count / leaves) + Math.max(0, leaf - shorter) + lowerBound(page, key);
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see NutrientIndexADT#rangeOrdinals(double, double, java.util.BitSet)
+     */
+    @Override
+    public void rangeOrdinals(double lowKey, double highKey, BitSet ordinals) {
+        visit(lowKey, highKey, (key, ordinal) -> ordinals.set(ordinal));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see NutrientIndexADT#estimateFraction(double, double)
+     */
+    @Override
+    public double estimateFraction(double lowKey, double highKey) {
+        return count == 0 ? 0 : (double) count(lowKey, highKey) / count;
+    }
+
+
+    /**
+     * Counts the entries whose keys lie in a closed range from the positions of its bounds, in
+     * O(log N) without reading the entries between them
+     *
+     * @see NutrientIndexADT#count(double, double)
+     */
+    @Override
+    public int count(double lowKey, double highKey) {
+        if (!(lowKey <= highKey)) {
+            return 0;
+        }
+        long high = highKey == Double.POSITIVE_INFINITY ? count : rank(Math.nextUp(highKey));
+        return (int) (high - rank(lowKey));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see NutrientIndexADT#sum(double, double)
+     */
+    @Override
+    public double sum(double lowKey, double highKey) {
+        return lowKey <= highKey ? sumRange(root, lowKey, highKey) : 0;
+    }
+
+
+    /**
+     * Adds up the keys of a subtree that lie in a closed range, the same walk as
+     * DoubleBPTree.InternalNode#sumRange: the children wholly inside the range add their stored
+     * sums, and only the children holding the bounds are read
+     *
+     * @param page root page of the subtree
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @return sum of the keys
+     */
+    private double sumRange(int page, double lowKey, double highKey) {
+        ByteBuffer buffer = segment(page);
+        int offset = offset(page);
+        int size = buffer.getInt(offset + 4);
+        int first = lowerBound(page, lowKey);
+        int last = highKey == Double.POSITIVE_INFINITY ? size
+                        : lowerBound(page, Math.nextUp(highKey));
+        if (buffer.getInt(offset) == LEAF) {
+            double sum = 0;
+            for (int i = first; i < last; i++) {
+                sum += buffer.getDouble(offset + PAGE_HEADER + 8 * i);
+            }
+            return sum;
+        }
+        int nodeCapacity = nodeCapacity(pageSize);
+        int childOffset = offset + PAGE_HEADER + 8 * nodeCapacity;
+        int sumOffset = childOffset + 4 * (nodeCapacity + 1);
+        if (first == last) {
+            return sumRange(buffer.getInt(childOffset + 4 * first), lowKey, highKey);
+        }
+        // the children in between lie wholly inside the range
+        double sum = sumRange(buffer.getInt(childOffset + 4 * first), lowKey, highKey)
+                        + sumRange(buffer.getInt(childOffset + 4 * last), lowKey, highKey);
+        for (int child = first + 1; child < last; child++) {
+            sum += buffer.getDouble(sumOffset + 8 * child);
+        }
+        return sum;
+    }
+
+
+    /**
+     * Gets the count, sum, smallest and largest of the keys that lie in a closed range. The
+     * smallest and largest keys are read at the two ends of the range in the leaf pages, so
+     * nothing between them is visited.
+     *
+     * @see NutrientIndexADT#statistics(double, double)
+     */
+    @Override
+    public RangeStatistics statistics(double lowKey, double highKey) {
+        int count = count(lowKey, highKey);
+        if (count == 0) {
+            return new RangeStatistics(0, 0, Double.NaN, Double.NaN);
+        }
+        // the range is not empty, so its first key follows lowKey and its last precedes highKey
+        int first = findLeaf(lowKey);
+        int i = lowerBound(first, lowKey);
+        if (i == segment(first).getInt(offset(first) + 4)) {
+            first = segment(first).getInt(offset(first) + 8);
+            i = 0;
+        }
+        int last = findLeaf(highKey == Double.POSITIVE_INFINITY ? highKey : Math.nextUp(highKey));
+        int j = highKey == Double.POSITIVE_INFINITY ? segment(last).getInt(offset(last) + 4) - 1
+                        : lowerBound(last, Math.nextUp(highKey)) - 1;
+        if (j < 0) {
+            last = segment(last).getInt(offset(last) + 12);
+            j = segment(last).getInt(offset(last) + 4) - 1;
+        }
+        return new RangeStatistics(count, sum(lowKey, highKey),
+                        segment(first).getDouble(offset(first) + PAGE_HEADER + 8 * i),
+                        segment(last).getDouble(offset(last) + PAGE_HEADER + 8 * j));
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see NutrientIndexADT#ordinals()
+     */
+    @Override
+    public int[] ordinals() {
+        int[] ordinals = new int[(int) count];
+        int[] next = new int[1];
+        visit(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                        (key, ordinal) -> ordinals[next[0]++] = ordinal);
+        return ordinals;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see BPTreeADT#spliterator(java.lang.Object, java.lang.Object, java.lang.String)
+     */
+    @Override
+    public Spliterator<V> spliterator(Double lowKey, Double highKey, String inclusivity) {
+        if (inclusivity == null || inclusivity.length() != 2
+                        || "[(".indexOf(inclusivity.charAt(0)) < 0
+                        || "])".indexOf(inclusivity.charAt(1)) < 0) {
+            return Spliterators.emptySpliterator();
+        }
+        return new RangeSpliterator(lowKey == null ? Double.NEGATIVE_INFINITY : lowKey.doubleValue(),
+                        highKey == null ? Double.POSITIVE_INFINITY : highKey.doubleValue(),
+                        lowKey == null || inclusivity.charAt(0) == '[',
+                        highKey == null || inclusivity.charAt(1) == ']', root);
+    }
+
+
+    /**
+     * Lazy range scan by subtree over the pages, see BPTree.RangeSpliterator
+     */
+    private class RangeSpliterator implements Spliterator<V> {
+
+        // Bounds of the range, infinite if that side is open
+        final double lowKey;
+        final double highKey;
+
+        // Whether keys equal to each bound qualify
+        final boolean lowInclusive;
+        final boolean highInclusive;
+
+        // Pages of the subtrees after the current leaf, in key order
+        final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+
+        // Leaf page being read and the position of its next entry, 0 before the first one
+        int leaf;
+        int i;
+
+        // Set once a key above the range was seen
+        boolean done;
+
+        // Values left, a guess halved on every split
+        long estimate;
+
+        /**
+         * Package constructor
+         *
+         * @param page root page of the subtree to scan, or 0 to start with none
+         */
+        RangeSpliterator(double lowKey, double highKey, boolean lowInclusive,
+                        boolean highInclusive, int page) {
+            this.lowKey = lowKey;
+            this.highKey = highKey;
+            this.lowInclusive = lowInclusive;
+            this.highInclusive = highInclusive;
+            if (page != 0) {
+                pending.add(page);
+            }
+            estimate = count;
+        }
+
+        boolean isLeaf(int page) {
+            return segment(page).getInt(offset(page)) == LEAF;
+        }
+
+        int size(int page) {
+            return segment(page).getInt(offset(page) + 4);
+        }
+
+        int child(int page, int child) {
+            return segment(page).getInt(offset(page) + PAGE_HEADER + 8 * nodeCapacity(pageSize)
+                            + 4 * child);
+        }
+
+        /**
+         * Gets the first child of an internal page that can hold keys in the range
+         */
+        int firstChild(int page) {
+            return lowerBound(page, lowKey);
+        }
+
+        /**
+         * Gets the last child of an internal page that can hold keys in the range
+         */
+        int lastChild(int page) {
+            return highKey == Double.POSITIVE_INFINITY ? size(page)
+                            : lowerBound(page, Math.nextUp(highKey));
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            while (!done) {
+                if (leaf != 0 && i < size(leaf)) {
+                    ByteBuffer buffer = segment(leaf);
+                    int keyOffset = offset(leaf) + PAGE_HEADER;
+                    double key = buffer.getDouble(keyOffset + 8 * i);
+                    int ordinal = buffer.getInt(keyOffset + 8 * leafCapacity(pageSize) + 4 * i++);
+                    if (!lowInclusive && key == lowKey) {
+                        continue;
+                    }
+                    if (key > highKey || (!highInclusive && key == highKey)) {
+                        done = true;
+                        return false;
+                    }
+                    action.accept(values.get(ordinal));
+                    return true;
+                }
+                Integer page = pending.pollFirst();
+                if (page == null) {
+                    done = true;
+                    return false;
+                }
+                // go down the leftmost path, the siblings on the right wait their turn
+                int node = page;
+                while (!isLeaf(node)) {
+                    int first = firstChild(node);
+                    for (int child = lastChild(node); child > first; child--) {
+                        pending.addFirst(child(node, child));
+                    }
+                    node = child(node, first);
+                }
+                leaf = node;
+                i = lowerBound(leaf, lowKey);
+            }
+            return false;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#trySplit()
+         */
+        @Override
+        public Spliterator<V> trySplit() {
+            if (done) {
+                return null;
+            }
+            while (pending.size() == 1 && !isLeaf(pending.peekFirst())) {
+                int page = pending.pollFirst();
+                for (int child = firstChild(page); child <= lastChild(page); child++) {
+                    pending.addLast(child(page, child));
+                }
+            }
+            int half = pending.size() / 2;
+            if (half == 0) {
+                return null;
+            }
+            RangeSpliterator prefix = new RangeSpliterator(lowKey, highKey, lowInclusive,
+                            highInclusive, 0);
+            prefix.leaf = leaf;
+            prefix.i = i;
+            for (int n = 0; n < half; n++) {
+                prefix.pending.addLast(pending.pollFirst());
+            }
+            leaf = 0;
+            estimate >>>= 1;
+            prefix.estimate = estimate;
+            return prefix;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#estimateSize()
+         */
+        @Override
+        public long estimateSize() {
+            return done ? 0 : estimate;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.Spliterator#characteristics()
+         */
+        @Override
+        public int characteristics() {
+            return ORDERED;
+        }
+
+    } // End of class RangeSpliterator
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int nodeCapacity = nodeCapacity(pageSize);
+        List<Integer> level = Arrays.asList(root);
+        while (!level.isEmpty()) {
+            List<Integer> nextLevel = new ArrayList<Integer>();
+            sb.append('{');
+            for (int i = 0; i < level.size(); i++) {
+                int page = level.get(i);
+                ByteBuffer buffer = segment(page);
+                int offset = offset(page);
+                int size = buffer.getInt(offset + 4);
+                double[] keys = new double[size];
+                for (int k = 0; k < size; k++) {
+                    keys[k] = buffer.getDouble(offset + PAGE_HEADER + 8 * k);
+                }
+                sb.append(Arrays.toString(keys));
+                if (i + 1 < level.size())
+                    sb.append(", ");
+                if (buffer.getInt(offset) == INTERNAL) {
+                    int childOffset = offset + PAGE_HEADER + 8 * nodeCapacity;
+                    for (int c = 0; c <= size; c++) {
+                        nextLevel.add(buffer.getInt(childOffset + 4 * c));
+                    }
+                }
+            }
+            sb.append("}\n");
+            level = nextLevel;
+        }
+        return sb.toString();
+    }
+
+} // End of class MappedBPTree
@@ -0,0 +1,223 @@
+package application;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Inverted index of the trigrams of food item names, for case-insensitive substring search.
+ * Every run of three characters of a lowercase name maps to the ordinals of the items whose names
+ * contain it, in ascending order. A search intersects the lists of the trigrams of the substring,
+ * starting from the shortest one, and checks the few candidates left with String.contains, so its
+ * cost follows the number of matches rather than the size of the catalog. Substrings shorter than
+ * a trigram are checked against every name.
+ *
+ * Ordinals only grow, so adding an item appends to the end of its lists. A removed item keeps its
+ * place in the lists and is skipped by searches until the index is built again.
+ */
+public class NameIndex {
+
+    // Characters in a gram
+    private static final int GRAM = 3;
+
+    // Lowercase name by ordinal, null for removed items
+    private final List<String> names;
+
+    // Ordinals by trigram
+    private final HashMap<Long, Postings> postings;
+
+
+    /**
+     * Public constructor, the index is empty
+     */
+    public NameIndex() {
+        names = new ArrayList<String>();
+        postings = new HashMap<Long, Postings>();
+    }
+
+
+    /**
+     * Public constructor, indexes every item of a list
+     *
+     * @param items food items by ordinal, null for removed ones
+     */
+    public NameIndex(List<FoodItem> items) {
+        this();
+        for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+            FoodItem item = items.get(ordinal);
+            if (item != null) {
+                add(ordinal, item.getName());
+            }
+        }
+    }
+
+
+    /**
+     * Packs the three characters of a trigram into one key
+     *
+     * @param name lowercase name
+     * @param start position of the first character
+     * @return key
+     */
+    private static long gram(String name, int start) {
+        return ((long) name.charAt(start) << 32) | ((long) name.charAt(start + 1) << 16)
+                        | name.charAt(start + 2);
+    }
+
+
+    /**
+     * Adds the name of an item
+     *
+     * @param ordinal ordinal of the item, greater than every ordinal added before
+     * @param name name of the item
+     */
+    public void add(int ordinal, String name) {
+        if (ordinal < names.size()) {
+            throw new IllegalArgumentException("Ordinals must be added in ascending order: "
+                            + ordinal);
+        }
+        while (names.size() < ordinal) {
+            names.add(null);
+        }
+        String lowerCase = name.toLowerCase();
+        names.add(lowerCase);
+        for (int start = 0; start + GRAM <= lowerCase.length(); start++) {
+            Long gram = gram(lowerCase, start);
+            Postings list = postings.get(gram);
+            if (list == null) {
+                list = new Postings();
+                postings.put(gram, list);
+            }
+            list.add(ordinal);
+        }
+    }
+
+
+    /**
+     * Removes the name of an item
+     *
+     * @param ordinal ordinal of the item
+     */
+    public void remove(int ordinal) {
+        if (ordinal < names.size()) {
+            names.set(ordinal, null);
+        }
+    }
+
+
+    /**
+     * Finds the items whose names contain a substring, ignoring case
+     *
+     * @param substring the substring
+     * @return ordinals of the items in ascending order
+     */
+    public int[] search(String substring) {
+        String lowerCase = substring.toLowerCase();
+        int[] candidates = null;
+        int count = names.size();
+        if (lowerCase.length() >= GRAM) {
+            Postings[] lists = new Postings[lowerCase.length() - GRAM + 1];
+            for (int start = 0; start < lists.length; start++) {
+                lists[start] = postings.get(gram(lowerCase, start));
+                if (lists[start] == null) {
+                    return new int[0];
+                }
+            }
+            // the shortest list bounds the candidates, the others only remove some
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+            candidates = Arrays.copyOf(lists[0].ordinals, lists[0].size);
+            count = candidates.length;
+            for (int i = 1; i < lists.length && count > 0; i++) {
+                count = lists[i].retain(candidates, count);
+            }
+        }
+        int[] matches = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int ordinal = candidates == null ? i : candidates[i];
+            String name = names.get(ordinal);
+            if (name != null && name.contains(lowerCase)) {
+                matches[found++] = ordinal;
+            }
+        }
+        return Arrays.copyOf(matches, found);
+    }
+
+
+    /**
+     * Ordinals of the items whose names contain one trigram, in ascending order
+     */
+    private static class Postings {
+
+        // Ordinals, sorted in the first size slots
+        int[] ordinals = new int[4];
+
+        // Number of ordinals in use
+        int size;
+
+        /**
+         * Appends an ordinal, once even if the name holds the trigram several times
+         *
+         * @param ordinal greater than or equal to every ordinal in the list
+         */
+        void add(int ordinal) {
+            if (size > 0 && ordinals[size - 1] == ordinal) {
+                return;
+            }
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, 2 * size);
+            }
+            ordinals[size++] = ordinal;
+        }
+
+        /**
+         * Keeps the candidates that are in this list
+         *
+         * @param candidates sorted ordinals, the kept ones are moved to the front
+         * @param count number of candidates
+         * @return number of candidates kept
+         */
+        int retain(int[] candidates, int count) {
+            int kept = 0;
+            int from = 0;
+            for (int i = 0; i < count && from < size; i++) {
+                from = lowerBound(candidates[i], from);
+                if (from < size && ordinals[from] == candidates[i]) {
+                    candidates[kept++] = candidates[i];
+                }
+            }
+            return kept;
+        }
+
+        /**
+         * Finds the first position at or after from whose ordinal is greater than or equal to
+         * the given one. The search gallops forward before it bisects, so walking a long list
+         * with a few candidates skips most of it.
+         *
+         * @param ordinal
+         * @param from position to start at
+         * @return position in [from, size]
+         */
+        int lowerBound(int ordinal, int from) {
+            int high = from;
+            for (int step = 1; high < size && ordinals[high] < ordinal; step <<= 1) {
+                from = high + 1;
+                high += step;
+            }
+            high = Math.min(high, size);
+            while (from < high) {
+                int mid = (from + high) >>> 1;
+                if (ordinals[mid] < ordinal) {
+                    from = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return from;
+        }
+
+    } // End of class Postings
+
+} // End of class NameIndex
@@ -0,0 +1,75 @@
+package application;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * The nutrients every food item has, in the order of the fields of a line of a food item file.
+ * Code that knows which nutrient it wants reads it through the enum, which indexes a double[]
+ * directly instead of hashing a name and unboxing a Double.
+ */
+public enum Nutrient {
+    CALORIES("calories"), FAT("fat"), CARBOHYDRATE("carbohydrate"), FIBER("fiber"),
+    PROTEIN("protein");
+
+    // Nutrients by lowercase name
+    private static final HashMap<String, Nutrient> BY_NAME = new HashMap<String, Nutrient>();
+    static {
+        for (Nutrient nutrient : values()) {
+            BY_NAME.put(nutrient.name, nutrient);
+        }
+    }
+
+    // Number of nutrients, the length of an array indexed by ordinal()
+    public static final int COUNT = values().length;
+
+    // Lowercase name, as written in food item files
+    private final String name;
+
+
+    /**
+     * Private constructor
+     *
+     * @param name lowercase name of the nutrient
+     */
+    private Nutrient(String name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Gets the lowercase name of the nutrient, as written in food item files
+     *
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * Finds the nutrient of a lowercase name
+     *
+     * @param name lowercase name of the nutrient
+     * @return the nutrient, or null if no nutrient has that name
+     */
+    public static Nutrient of(String name) {
+        return name == null ? null : BY_NAME.get(name);
+    }
+
+
+    /**
+     * Gets the lowercase names of all the nutrients, in order
+     *
+     * @return names
+     */
+    public static List<String> names() {
+        List<String> names = new ArrayList<String>(COUNT);
+        for (Nutrient nutrient : values()) {
+            names.add(nutrient.name);
+        }
+        return names;
+    }
+
+} // End of enum Nutrient
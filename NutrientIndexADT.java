@@ -0,0 +1,72 @@
+package application;
+import java.util.BitSet;
+
+/**
+ * A B+ tree over double nutrient values whose values are referred to by ordinal, the queries
+ * FoodData runs on a nutrient index. DoubleBPTree implements it on the heap and can be changed;
+ * MappedBPTree implements it over a memory-mapped file and is read-only.
+ *
+ * Every range below is closed: a bound of negative or positive infinity leaves that side open.
+ *
+ * @param <V> value - expect a user-defined type that stores all data for a food item
+ */
+public interface NutrientIndexADT<V> extends BPTreeADT<Double, V> {
+
+    /**
+     * Sets the bit of the ordinal of every entry whose key lies in a range
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @param ordinals the bits to set
+     */
+    public void rangeOrdinals(double lowKey, double highKey, BitSet ordinals);
+
+
+    /**
+     * Gets the share of entries whose keys lie in a range
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @return share of the entries, between 0 and 1
+     */
+    public double estimateFraction(double lowKey, double highKey);
+
+
+    /**
+     * Counts the entries whose keys lie in a range
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @return number of entries
+     */
+    public int count(double lowKey, double highKey);
+
+
+    /**
+     * Adds up the keys that lie in a range
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @return sum of the keys, 0 if there are none
+     */
+    public double sum(double lowKey, double highKey);
+
+
+    /**
+     * Gets the count, sum, smallest and largest of the keys that lie in a range
+     *
+     * @param lowKey lower bound
+     * @param highKey upper bound
+     * @return statistics of the keys
+     */
+    public RangeStatistics statistics(double lowKey, double highKey);
+
+
+    /**
+     * Gets the ordinals of all entries in ascending key order
+     *
+     * @return ordinals
+     */
+    public int[] ordinals();
+
+}
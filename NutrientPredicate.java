@@ -0,0 +1,176 @@
+package application;
+import java.util.function.Predicate;
+
+
+/**
+ * One rule of a nutrient filter, such as "calories >= 50.0", parsed once so it can be checked
+ * against any number of food items without splitting or parsing strings again. Nutrient names
+ * are case-insensitive and kept in lower case. An item that has no value of the nutrient does
+ * not satisfy the rule.
+ *
+ * @see Query
+ */
+public class NutrientPredicate implements Predicate<FoodItem> {
+
+    /**
+     * How a nutrient value is compared with the value of the rule
+     */
+    public enum Comparator {
+        AT_LEAST(">="), EQUAL_TO("=="), AT_MOST("<=");
+
+        // Symbol of the comparator in a rule string
+        private final String symbol;
+
+        private Comparator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * Gets the symbol of the comparator in a rule string
+         *
+         * @return symbol
+         */
+        public String getSymbol() {
+            return symbol;
+        }
+
+        /**
+         * Gets the comparator written as a symbol
+         *
+         * @param symbol one of {@code >=}, {@code ==}, {@code <=}
+         * @return comparator
+         * @throws IllegalArgumentException if the symbol is not a comparator
+         */
+        public static Comparator fromSymbol(String symbol) {
+            for (Comparator comparator : values()) {
+                if (comparator.symbol.equals(symbol)) {
+                    return comparator;
+                }
+            }
+            throw new IllegalArgumentException("Unknown comparator: " + symbol);
+        }
+    }
+
+    // Name of the nutrient, in lower case
+    private final String nutrient;
+
+    // How the value of the nutrient is compared
+    private final Comparator comparator;
+
+    // Value the nutrient is compared with
+    private final double value;
+
+
+    /**
+     * Public constructor
+     *
+     * @param nutrient name of the nutrient, case-insensitive
+     * @param comparator how the value of the nutrient is compared
+     * @param value value the nutrient is compared with
+     * @throws IllegalArgumentException if an argument is null or the value is NaN
+     */
+    public NutrientPredicate(String nutrient, Comparator comparator, double value) {
+        if (nutrient == null || comparator == null || Double.isNaN(value)) {
+            throw new IllegalArgumentException("Illegal rule: " + nutrient + " " + comparator
+                            + " " + value);
+        }
+        this.nutrient = nutrient.toLowerCase();
+        this.comparator = comparator;
+        this.value = value;
+    }
+
+
+    /**
+     * Parses a rule of the form "<nutrient> <comparator> <value>", see
+     * FoodDataADT#filterByNutrients(java.util.List)
+     *
+     * @param rule the rule
+     * @return the predicate
+     * @throws IllegalArgumentException if the rule is not in that form
+     */
+    public static NutrientPredicate parse(String rule) {
+        String[] receiver = rule == null ? new String[0] : rule.trim().split("\\s+");
+        if (receiver.length != 3) {
+            throw new IllegalArgumentException("Illegal rule: " + rule);
+        }
+        return new NutrientPredicate(receiver[0], Comparator.fromSymbol(receiver[1]),
+                        Double.parseDouble(receiver[2]));
+    }
+
+
+    /**
+     * Gets the name of the nutrient
+     *
+     * @return nutrient name in lower case
+     */
+    public String getNutrient() {
+        return nutrient;
+    }
+
+
+    /**
+     * Gets how the value of the nutrient is compared
+     *
+     * @return comparator
+     */
+    public Comparator getComparator() {
+        return comparator;
+    }
+
+
+    /**
+     * Gets the value the nutrient is compared with
+     *
+     * @return value
+     */
+    public double getValue() {
+        return value;
+    }
+
+
+    /**
+     * Gets the smallest nutrient value that satisfies the rule
+     *
+     * @return lower bound, negative infinity if there is none
+     */
+    public double getLowerBound() {
+        return comparator == Comparator.AT_MOST ? Double.NEGATIVE_INFINITY : value;
+    }
+
+
+    /**
+     * Gets the largest nutrient value that satisfies the rule
+     *
+     * @return upper bound, positive infinity if there is none
+     */
+    public double getUpperBound() {
+        return comparator == Comparator.AT_LEAST ? Double.POSITIVE_INFINITY : value;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.function.Predicate#test(java.lang.Object)
+     */
+    @Override
+    public boolean test(FoodItem foodItem) {
+        if (!foodItem.hasNutrient(nutrient)) {
+            return false;
+        }
+        double nutrientValue = foodItem.getNutrientValue(nutrient);
+        return nutrientValue >= getLowerBound() && nutrientValue <= getUpperBound();
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return nutrient + " " + comparator.getSymbol() + " " + value;
+    }
+
+} // End of class NutrientPredicate
@@ -0,0 +1,101 @@
+package application;
+
+
+/**
+ * Running totals of the nutrients of a set of food items, such as a meal. Adding or removing an
+ * item adds or subtracts its values once, so the totals are ready at any time without summing the
+ * items again, whatever their number.
+ *
+ * The totals are set back to exactly zero whenever the last item is removed, so rounding left
+ * over by the subtractions does not outlive an emptied meal.
+ */
+public class NutrientTotals {
+
+    // Sum of each nutrient over the items, by Nutrient ordinal
+    private final double[] totals;
+
+    // Number of items added and not removed
+    private int count;
+
+
+    /**
+     * Public constructor, every total starts at zero
+     */
+    public NutrientTotals() {
+        totals = new double[Nutrient.COUNT];
+    }
+
+
+    /**
+     * Adds the values of a food item to the totals
+     *
+     * @param foodItem the food item
+     */
+    public void add(FoodItem foodItem) {
+        for (Nutrient nutrient : Nutrient.values()) {
+            totals[nutrient.ordinal()] += foodItem.getNutrientValue(nutrient);
+        }
+        count++;
+    }
+
+
+    /**
+     * Subtracts the values of a food item that was added before from the totals
+     *
+     * @param foodItem the food item
+     */
+    public void remove(FoodItem foodItem) {
+        if (--count == 0) {
+            clear();
+            return;
+        }
+        for (Nutrient nutrient : Nutrient.values()) {
+            totals[nutrient.ordinal()] -= foodItem.getNutrientValue(nutrient);
+        }
+    }
+
+
+    /**
+     * Moves the total of a nutrient after the value of one item changed
+     *
+     * @param nutrient the nutrient
+     * @param oldValue value before the change
+     * @param newValue value after the change
+     */
+    public void update(Nutrient nutrient, double oldValue, double newValue) {
+        totals[nutrient.ordinal()] += newValue - oldValue;
+    }
+
+
+    /**
+     * Sets every total and the count back to zero
+     */
+    public void clear() {
+        count = 0;
+        for (int nutrient = 0; nutrient < totals.length; nutrient++) {
+            totals[nutrient] = 0;
+        }
+    }
+
+
+    /**
+     * Gets the total of a nutrient
+     *
+     * @param nutrient the nutrient
+     * @return total
+     */
+    public double getTotal(Nutrient nutrient) {
+        return totals[nutrient.ordinal()];
+    }
+
+
+    /**
+     * Gets the number of items in the totals
+     *
+     * @return count
+     */
+    public int getCount() {
+        return count;
+    }
+
+} // End of class NutrientTotals
@@ -0,0 +1,305 @@
+package application;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+
+/**
+ * A nutrient filter: food items match when they satisfy every one of its rules. The rules of
+ * each nutrient are folded into one closed range when the query is built, so a query is parsed
+ * once and can then be run by FoodData#filterByQuery(Query) any number of times.
+ * An item that has no value of one of the nutrients does not match, whatever the range.
+ *
+ * Example:
+ *
+ * <pre>
+ * Query query = new Query.Builder().atLeast("calories", 50).atMost("calories", 200)
+ *                 .equalTo("fiber", 2.5).build();
+ * </pre>
+ *
+ * @see NutrientPredicate
+ */
+public class Query implements Predicate<FoodItem> {
+
+    // Nutrients with a rule, in lower case
+    private final String[] nutrients;
+
+    // Smallest value each nutrient may have, negative infinity if there is none
+    private final double[] lowerBounds;
+
+    // Largest value each nutrient may have, positive infinity if there is none
+    private final double[] upperBounds;
+
+
+    /**
+     * Private constructor, queries are created by a Builder
+     */
+    private Query(String[] nutrients, double[] lowerBounds, double[] upperBounds) {
+        this.nutrients = nutrients;
+        this.lowerBounds = lowerBounds;
+        this.upperBounds = upperBounds;
+    }
+
+
+    /**
+     * Parses rules of the form "<nutrient> <comparator> <value>", see
+     * FoodDataADT#filterByNutrients(java.util.List)
+     *
+     * @param rules the rules, null for none
+     * @return the query
+     * @throws IllegalArgumentException if a rule is not in that form
+     */
+    public static Query parse(List<String> rules) {
+        Builder builder = new Builder();
+        if (rules != null) {
+            for (String rule : rules) {
+                builder.where(NutrientPredicate.parse(rule));
+            }
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * Gets the number of nutrients with a rule
+     *
+     * @return size
+     */
+    public int size() {
+        return nutrients.length;
+    }
+
+
+    /**
+     * Checks whether the query has no rules, so every food item matches
+     *
+     * @return true if the query is empty
+     */
+    public boolean isEmpty() {
+        return nutrients.length == 0;
+    }
+
+
+    /**
+     * Gets the name of a nutrient with a rule
+     *
+     * @param i position of the nutrient, in the order its first rule was added
+     * @return nutrient name in lower case
+     */
+    public String getNutrient(int i) {
+        return nutrients[i];
+    }
+
+
+    /**
+     * Gets the smallest value a nutrient may have
+     *
+     * @param i position of the nutrient
+     * @return lower bound, negative infinity if there is none
+     */
+    public double getLowerBound(int i) {
+        return lowerBounds[i];
+    }
+
+
+    /**
+     * Gets the largest value a nutrient may have
+     *
+     * @param i position of the nutrient
+     * @return upper bound, positive infinity if there is none
+     */
+    public double getUpperBound(int i) {
+        return upperBounds[i];
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.function.Predicate#test(java.lang.Object)
+     */
+    @Override
+    public boolean test(FoodItem foodItem) {
+        return test(foodItem, -1);
+    }
+
+
+    /**
+     * Checks the rules of every nutrient but one, for items already known to satisfy that one
+     *
+     * @param foodItem the food item
+     * @param skipped position of the nutrient not to check, or -1
+     * @return true if the food item has every other nutrient and satisfies its rules
+     */
+    boolean test(FoodItem foodItem, int skipped) {
+        for (int i = 0; i < nutrients.length; i++) {
+            if (i == skipped) {
+                continue;
+            }
+            if (!foodItem.hasNutrient(nutrients[i])) {
+                return false;
+            }
+            double value = foodItem.getNutrientValue(nutrients[i]);
+            if (value < lowerBounds[i] || value > upperBounds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Checks the rules of every nutrient but one against values stored by column, such as the
+     * columns of a FoodStore
+     *
+     * @param columns values of the nutrient at each position, by ordinal
+     * @param present rows that have a value of the nutrient at each position
+     * @param ordinal the row to check
+     * @param skipped position of the nutrient not to check, or -1
+     * @return true if the row has every other nutrient and satisfies its rules
+     */
+    boolean test(double[][] columns, BitSet[] present, int ordinal, int skipped) {
+        for (int i = 0; i < nutrients.length; i++) {
+            if (i == skipped) {
+                continue;
+            }
+            if (!present[i].get(ordinal)) {
+                return false;
+            }
+            double value = columns[i][ordinal];
+            if (value < lowerBounds[i] || value > upperBounds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        List<String> rules = new ArrayList<String>();
+        for (int i = 0; i < nutrients.length; i++) {
+            if (lowerBounds[i] == upperBounds[i]) {
+                rules.add(nutrients[i] + " == " + lowerBounds[i]);
+                continue;
+            }
+            if (lowerBounds[i] != Double.NEGATIVE_INFINITY) {
+                rules.add(nutrients[i] + " >= " + lowerBounds[i]);
+            }
+            if (upperBounds[i] != Double.POSITIVE_INFINITY) {
+                rules.add(nutrients[i] + " <= " + upperBounds[i]);
+            }
+        }
+        return rules.toString();
+    }
+
+
+    /**
+     * Collects the rules of a query. A builder can be reused; every call to build returns a
+     * query of the rules added so far.
+     */
+    public static class Builder {
+
+        // Lower and upper bound of each nutrient, in the order its first rule was added
+        private final Map<String, double[]> bounds = new LinkedHashMap<String, double[]>();
+
+
+        /**
+         * Adds a rule
+         *
+         * @param predicate the rule
+         * @return this builder
+         */
+        public Builder where(NutrientPredicate predicate) {
+            double[] bound = bounds.get(predicate.getNutrient());
+            if (bound == null) {
+                bound = new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+                bounds.put(predicate.getNutrient(), bound);
+            }
+            bound[0] = Math.max(bound[0], predicate.getLowerBound());
+            bound[1] = Math.min(bound[1], predicate.getUpperBound());
+            return this;
+        }
+
+
+        /**
+         * Adds a rule
+         *
+         * @param nutrient name of the nutrient, case-insensitive
+         * @param comparator how the value of the nutrient is compared
+         * @param value value the nutrient is compared with
+         * @return this builder
+         */
+        public Builder where(String nutrient, NutrientPredicate.Comparator comparator,
+                        double value) {
+            return where(new NutrientPredicate(nutrient, comparator, value));
+        }
+
+
+        /**
+         * Adds the rule "<nutrient> >= <value>"
+         *
+         * @param nutrient name of the nutrient, case-insensitive
+         * @param value smallest value allowed
+         * @return this builder
+         */
+        public Builder atLeast(String nutrient, double value) {
+            return where(nutrient, NutrientPredicate.Comparator.AT_LEAST, value);
+        }
+
+
+        /**
+         * Adds the rule "<nutrient> == <value>"
+         *
+         * @param nutrient name of the nutrient, case-insensitive
+         * @param value only value allowed
+         * @return this builder
+         */
+        public Builder equalTo(String nutrient, double value) {
+            return where(nutrient, NutrientPredicate.Comparator.EQUAL_TO, value);
+        }
+
+
+        /**
+         * Adds the rule "<nutrient> <= <value>"
+         *
+         * @param nutrient name of the nutrient, case-insensitive
+         * @param value largest value allowed
+         * @return this builder
+         */
+        public Builder atMost(String nutrient, double value) {
+            return where(nutrient, NutrientPredicate.Comparator.AT_MOST, value);
+        }
+
+
+        /**
+         * Creates a query of the rules added so far
+         *
+         * @return the query
+         */
+        public Query build() {
+            int size = bounds.size();
+            String[] nutrients = new String[size];
+            double[] lowerBounds = new double[size];
+            double[] upperBounds = new double[size];
+            int i = 0;
+            for (Map.Entry<String, double[]> entry : bounds.entrySet()) {
+                nutrients[i] = entry.getKey();
+                lowerBounds[i] = entry.getValue()[0];
+                upperBounds[i] = entry.getValue()[1];
+                i++;
+            }
+            return new Query(nutrients, lowerBounds, upperBounds);
+        }
+
+    } // End of class Builder
+
+} // End of class Query
@@ -0,0 +1,98 @@
+package application;
+
+
+/**
+ * Count, sum, smallest and largest of the values in a range, the answer of an aggregate query.
+ * An empty range has a count and sum of 0 and no smallest, largest or average value (NaN).
+ */
+public class RangeStatistics {
+
+    // Number of values
+    private final int count;
+
+    // Sum of the values
+    private final double sum;
+
+    // Smallest and largest value, NaN if there are none
+    private final double min;
+    private final double max;
+
+
+    /**
+     * Public constructor
+     *
+     * @param count number of values
+     * @param sum sum of the values
+     * @param min smallest value, NaN if there are none
+     * @param max largest value, NaN if there are none
+     */
+    public RangeStatistics(int count, double sum, double min, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+
+    /**
+     * Gets the number of values
+     *
+     * @return count
+     */
+    public int getCount() {
+        return count;
+    }
+
+
+    /**
+     * Gets the sum of the values
+     *
+     * @return sum, 0 if there are none
+     */
+    public double getSum() {
+        return sum;
+    }
+
+
+    /**
+     * Gets the smallest value
+     *
+     * @return min, NaN if there are none
+     */
+    public double getMin() {
+        return min;
+    }
+
+
+    /**
+     * Gets the largest value
+     *
+     * @return max, NaN if there are none
+     */
+    public double getMax() {
+        return max;
+    }
+
+
+    /**
+     * Gets the average of the values
+     *
+     * @return average, NaN if there are none
+     */
+    public double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + ", average="
+                        + getAverage();
+    }
+
+} // End of class RangeStatistics